@@ -0,0 +1,279 @@
+package profnetwork.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/*
+ * Closed-loop load driver: each thread picks an operation from the mix,
+ * calls the service layer, records the latency and goes straight on to
+ * the next call (or after --think ms).  It steps through each thread
+ * count in --threads and prints throughput and latency percentiles per
+ * operation for each step, then one summary line per step; the thread
+ * count where throughput flattens while p99 climbs is the knee.
+ *
+ *   java -Dprofnetwork.bench.db=... -Dprofnetwork.pool.maxSize=64 \
+ *        -cp bench/target/benchmarks.jar profnetwork.bench.LoadDriver
+ *        [--threads 1,2,4,8,16,32] [--duration 60] [--warmup 10]
+ *        [--mix view=40,search=20,send=20,inbox=20] [--think 0]
+ *        [--users 10000] [--hgrm <dir>]
+ *
+ * Operations: login, view, connections, search, send, inbox.  --hgrm
+ * writes each step's full percentile distribution per operation in
+ * HdrHistogram's .hgrm format, for plotting.  The connection settings are
+ * the ones ServiceBenchmark reads.  Threads beyond pool.maxSize queue for
+ * a connection, and that wait is part of the measured latency.
+ */
+public final class LoadDriver {
+    // rows per page, as in the menus
+    private static final int PAGE_SIZE = 20;
+    private static final int SEARCH_PAGE_SIZE = 10;
+    private static final int READ_COUNT = 5;
+    // microseconds, up to an hour
+    private static final long HIGHEST = TimeUnit.HOURS.toMicros(1);
+
+    /* One kind of call, as the menus make it. */
+    enum Op {
+        LOGIN("login"){
+            void run(ProfNetworkClient client, UserSample users, Random random) throws SQLException {
+                int i = users.pick(random);
+                client.logIn(users.ids[i], users.passwords[i]);
+            }
+        },
+        VIEW("view"){
+            void run(ProfNetworkClient client, UserSample users, Random random) throws SQLException {
+                client.profile(users.ids[users.pick(random)], users.ids[users.pick(random)]);
+            }
+        },
+        CONNECTIONS("connections"){
+            void run(ProfNetworkClient client, UserSample users, Random random) throws SQLException {
+                client.connections(users.ids[users.pick(random)]);
+            }
+        },
+        SEARCH("search"){
+            void run(ProfNetworkClient client, UserSample users, Random random) throws SQLException {
+                client.search(users.prefix(users.pick(random)), SEARCH_PAGE_SIZE, 0);
+            }
+        },
+        SEND("send"){
+            void run(ProfNetworkClient client, UserSample users, Random random) throws SQLException {
+                client.send(users.ids[users.pick(random)], users.ids[users.pick(random)], "load test");
+            }
+        },
+        INBOX("inbox"){
+            void run(ProfNetworkClient client, UserSample users, Random random) throws SQLException {
+                client.readInbox(users.ids[users.pick(random)], PAGE_SIZE, READ_COUNT);
+            }
+        };
+
+        final String label;
+
+        Op(String label){
+            this.label = label;
+        }
+
+        abstract void run(ProfNetworkClient client, UserSample users, Random random) throws SQLException;
+
+        static Op of(String label){
+            for (Op op : values()){
+                if (op.label.equals(label))
+                    return op;
+            }
+            throw new IllegalArgumentException("Unknown operation " + label);
+        }
+    }//end Op
+
+    private final ProfNetworkClient client;
+    private final UserSample users;
+    // operations and their cumulative weights, for picking from the mix
+    private final Op[] ops;
+    private final int[] cumulative;
+    private final long thinkMs;
+    private final Map<Op, Recorder> recorders = new EnumMap<Op, Recorder>(Op.class);
+    private final Map<Op, AtomicLong> errors = new EnumMap<Op, AtomicLong>(Op.class);
+    private volatile boolean running;
+
+    LoadDriver(ProfNetworkClient client, UserSample users, Map<Op, Integer> mix, long thinkMs){
+        this.client = client;
+        this.users = users;
+        this.thinkMs = thinkMs;
+        this.ops = mix.keySet().toArray(new Op[0]);
+        this.cumulative = new int[ops.length];
+        int sum = 0;
+        for (int i = 0; i < ops.length; i++){
+            sum += mix.get(ops[i]);
+            cumulative[i] = sum;
+            recorders.put(ops[i], new Recorder(HIGHEST, 3));
+            errors.put(ops[i], new AtomicLong());
+        }
+        if (sum <= 0)
+            throw new IllegalArgumentException("--mix needs a positive weight");
+    }
+
+    public static void main(String[] args) throws Exception {
+        String threads = "8", mix = "view=40,search=20,send=20,inbox=20";
+        long duration = 60, warmup = 10, think = 0;
+        int sample = 10000;
+        File hgrm = null;
+        for (int i = 0; i + 1 < args.length; i += 2){
+            String value = args[i + 1];
+            if (args[i].equals("--threads")) threads = value;
+            else if (args[i].equals("--duration")) duration = Long.parseLong(value);
+            else if (args[i].equals("--warmup")) warmup = Long.parseLong(value);
+            else if (args[i].equals("--mix")) mix = value;
+            else if (args[i].equals("--think")) think = Long.parseLong(value);
+            else if (args[i].equals("--users")) sample = Integer.parseInt(value);
+            else if (args[i].equals("--hgrm")) hgrm = new File(value);
+            else throw new IllegalArgumentException("Unknown option " + args[i]);
+        }
+        if (args.length % 2 != 0)
+            throw new IllegalArgumentException("Missing value for " + args[args.length - 1]);
+        if (hgrm != null && !hgrm.isDirectory() && !hgrm.mkdirs())
+            throw new IOException("Cannot create " + hgrm);
+
+        Map<Op, Integer> weights = parseMix(mix);
+        ProfNetworkClient client = ProfNetworkClient.connect();
+        try{
+            LoadDriver driver = new LoadDriver(client, UserSample.draw(client, sample), weights, think);
+            List<String> summary = new ArrayList<String>();
+            for (String step : threads.split(",")){
+                summary.add(driver.step(Integer.parseInt(step.trim()), warmup, duration, hgrm));
+            }
+            System.out.println();
+            System.out.printf("%8s %10s %10s %10s %10s %8s%n", "threads", "ops/s", "p50 ms", "p99 ms", "p99.9 ms", "errors");
+            for (String line : summary){
+                System.out.println(line);
+            }
+        }finally{
+            client.close();
+        }
+    }//end main
+
+    static Map<Op, Integer> parseMix(String mix){
+        Map<Op, Integer> result = new EnumMap<Op, Integer>(Op.class);
+        for (String part : mix.split(",")){
+            String[] pair = part.split("=");
+            if (pair.length != 2)
+                throw new IllegalArgumentException("--mix entries look like view=40, not " + part);
+            int weight = Integer.parseInt(pair[1].trim());
+            if (weight > 0)
+                result.put(Op.of(pair[0].trim()), weight);
+        }
+        return result;
+    }
+
+    /*
+     * Runs one step with the given number of threads, prints its report
+     * and returns its summary line.
+     */
+    String step(int threads, long warmupSecs, long durationSecs, File hgrm) throws InterruptedException, IOException {
+        System.out.printf("%n%d threads: %ds warmup, %ds measured%n", threads, warmupSecs, durationSecs);
+        running = true;
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++){
+            Thread worker = new Thread(new Runnable(){
+                public void run(){
+                    work();
+                }
+            }, "load-" + t);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        TimeUnit.SECONDS.sleep(warmupSecs);
+        for (Op op : ops){
+            // discard what the warmup recorded
+            recorders.get(op).getIntervalHistogram();
+            errors.get(op).set(0);
+        }
+        long start = System.nanoTime();
+        TimeUnit.SECONDS.sleep(durationSecs);
+        Map<Op, Histogram> results = new EnumMap<Op, Histogram>(Op.class);
+        for (Op op : ops){
+            results.put(op, recorders.get(op).getIntervalHistogram());
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+        running = false;
+        for (Thread worker : workers){
+            worker.join();
+        }
+
+        System.out.printf("%-12s %10s %10s %9s %9s %9s %9s %9s %8s%n",
+                "op", "count", "ops/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "errors");
+        Histogram all = new Histogram(HIGHEST, 3);
+        long failed = 0;
+        for (Op op : ops){
+            Histogram histogram = results.get(op);
+            all.add(histogram);
+            failed += errors.get(op).get();
+            print(op.label, histogram, secs, errors.get(op).get());
+            if (hgrm != null)
+                write(new File(hgrm, op.label + "-" + threads + ".hgrm"), histogram);
+        }
+        print("all", all, secs, failed);
+        return String.format("%8d %10.1f %10.2f %10.2f %10.2f %8d", threads, all.getTotalCount() / secs,
+                all.getValueAtPercentile(50) / 1000.0, all.getValueAtPercentile(99) / 1000.0,
+                all.getValueAtPercentile(99.9) / 1000.0, failed);
+    }//end step
+
+    /* One worker's loop: pick, call, record, until the step ends. */
+    private void work(){
+        Random random = new Random();
+        while (running){
+            Op op = pick(random);
+            long start = System.nanoTime();
+            try{
+                op.run(client, users, random);
+                recorders.get(op).recordValue(Math.min(HIGHEST, (System.nanoTime() - start) / 1000));
+            }catch (Exception e){
+                if (errors.get(op).getAndIncrement() == 0)
+                    System.err.println(op.label + " failed: " + e.getMessage());
+            }
+            if (thinkMs > 0){
+                try{
+                    Thread.sleep(thinkMs);
+                }catch (InterruptedException e){
+                    return;
+                }
+            }
+        }
+    }
+
+    private Op pick(Random random){
+        int roll = random.nextInt(cumulative[cumulative.length - 1]);
+        for (int i = 0; i < cumulative.length; i++){
+            if (roll < cumulative[i])
+                return ops[i];
+        }
+        return ops[ops.length - 1];
+    }
+
+    private static void print(String label, Histogram h, double secs, long errors){
+        System.out.printf("%-12s %10d %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f %8d%n", label, h.getTotalCount(),
+                h.getTotalCount() / secs, h.getValueAtPercentile(50) / 1000.0, h.getValueAtPercentile(90) / 1000.0,
+                h.getValueAtPercentile(99) / 1000.0, h.getValueAtPercentile(99.9) / 1000.0,
+                h.getMaxValue() / 1000.0, errors);
+    }
+
+    private static void write(File file, Histogram histogram) throws IOException {
+        PrintStream out = new PrintStream(new FileOutputStream(file), false, "UTF-8");
+        try{
+            // microseconds recorded, milliseconds reported
+            histogram.outputPercentileDistribution(out, 1000.0);
+        }finally{
+            out.close();
+        }
+    }
+}//end LoadDriver
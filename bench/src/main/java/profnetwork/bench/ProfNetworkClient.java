@@ -0,0 +1,260 @@
+package profnetwork.bench;
+
+import java.io.Closeable;
+import java.io.File;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Typed access to the ProfNetwork services for the benchmarks.
+ *
+ * The application lives in the unnamed package, which no class in a
+ * named package can reference (and JMH refuses benchmarks in the unnamed
+ * package), so every service method is looked up once here and called
+ * through Method.invoke.  That adds well under a microsecond to calls that
+ * each cost a database round trip.
+ */
+final class ProfNetworkClient implements Closeable {
+    private final Object esql;
+    private final Object profiles;
+    private final Object connections;
+    private final Object messages;
+    private final Object inbox;
+
+    private final Method logIn;
+    private final Method profile;
+    private final Method findByName;
+    private final Method search;
+    private final Method connectionsOf;
+    private final Method mutual;
+    private final Method send;
+    private final Method mailbox;
+    private final Method read;
+    private final Method query;
+    private final Method cleanup;
+    private final Field pageMessages;
+    private final Field msgId;
+
+    private ProfNetworkClient(Object esql) throws ReflectiveOperationException {
+        Class<?> app = esql.getClass();
+        this.esql = esql;
+        this.profiles = call(method(app, "profileService"), esql);
+        this.connections = call(method(app, "connectionService"), esql);
+        this.messages = call(method(app, "messageService"), esql);
+        this.query = method(app, "executeQueryAndReturnResult", String.class, Object[].class);
+        this.cleanup = method(app, "cleanup");
+
+        Class<?> profileService = profiles.getClass();
+        this.logIn = method(profileService, "logIn", String.class, String.class);
+        this.profile = method(profileService, "profile", String.class, String.class);
+        this.findByName = method(profileService, "findByName", String.class);
+        this.search = method(profileService, "search", String.class, int.class, int.class);
+
+        this.connectionsOf = method(connections.getClass(), "connections", String.class, String.class);
+        this.mutual = method(connections.getClass(), "mutual", String.class, String.class);
+
+        Class<?> messageService = messages.getClass();
+        Class<?> box = Class.forName("MessageService$Box");
+        this.inbox = enumConstant(box, "INBOX");
+        this.send = method(messageService, "send", String.class, String.class, String.class);
+        this.mailbox = method(messageService, "mailbox", String.class, box, Timestamp.class, int.class, int.class);
+        this.read = method(messageService, "read", String.class, int[].class);
+        this.pageMessages = field(Class.forName("MessagePage"), "messages");
+        this.msgId = field(Class.forName("Message"), "msgId");
+    }
+
+    /**
+     * Connects to the database named by the profnetwork.bench.db, .port
+     * and .user system properties, which default to the DB_NAME, PGPORT
+     * and USER variables the scripts use.
+     */
+    static ProfNetworkClient connect() throws SQLException {
+        String user = setting("user", env("USER", "postgres"));
+        return connect(setting("db", env("DB_NAME", user + "_DB")), setting("port", env("PGPORT", "5432")), user);
+    }
+
+    /**
+     * Connects the way ProfNetwork.main does, through the connection pool
+     * on localhost.
+     */
+    static ProfNetworkClient connect(String dbname, String dbport, String user) throws SQLException {
+        try{
+            Class.forName("org.postgresql.Driver");
+            Constructor<?> create = Class.forName("ProfNetwork")
+                    .getConstructor(String.class, String.class, String.class, String.class);
+            return new ProfNetworkClient(create.newInstance(dbname, dbport, user, ""));
+        }catch (InvocationTargetException e){
+            throw unwrap(e);
+        }catch (ReflectiveOperationException e){
+            throw new IllegalStateException("ProfNetwork classes do not match the benchmark", e);
+        }
+    }//end connect
+
+    /**
+     * Bulk loads the CSV snapshot in dir if USR is empty; the schema must
+     * already exist (sql/src/create_tables.sql and create_index.sql).
+     */
+    void seed(File dir) throws SQLException {
+        if (!query("SELECT 1 FROM USR LIMIT 1").isEmpty())
+            return;
+        try{
+            Constructor<?> create = Class.forName("BulkLoader").getDeclaredConstructor(esql.getClass(), File.class);
+            create.setAccessible(true);
+            Object loader = create.newInstance(esql, dir);
+            if (!(Boolean) call(method(loader.getClass(), "run"), loader))
+                throw new SQLException("Loading " + dir + " failed, see the log above");
+        }catch (ReflectiveOperationException e){
+            throw new IllegalStateException("ProfNetwork classes do not match the benchmark", e);
+        }
+    }//end seed
+
+    /** Rows of a query, as executeQueryAndReturnResult returns them. */
+    @SuppressWarnings("unchecked")
+    List<List<String>> query(String sql, Object... params) throws SQLException {
+        return (List<List<String>>) invoke(query, esql, sql, params);
+    }
+
+    String logIn(String login, String password) throws SQLException {
+        return (String) invoke(logIn, profiles, login, password);
+    }
+
+    Object profile(String viewer, String userId) throws SQLException {
+        return invoke(profile, profiles, viewer, userId);
+    }
+
+    List<?> findByName(String fullName) throws SQLException {
+        return (List<?>) invoke(findByName, profiles, fullName);
+    }
+
+    List<?> search(String term, int limit, int offset) throws SQLException {
+        return (List<?>) invoke(search, profiles, term, limit, offset);
+    }
+
+    List<?> connections(String user) throws SQLException {
+        return (List<?>) invoke(connectionsOf, connections, user, null);
+    }
+
+    /** Connections a and b have in common. */
+    @SuppressWarnings("unchecked")
+    List<String> mutual(String a, String b) throws SQLException {
+        return (List<String>) invoke(mutual, connections, a, b);
+    }
+
+    Object send(String from, String to, String contents) throws SQLException {
+        return invoke(send, messages, from, to, contents);
+    }
+
+    /** Ids of the newest limit messages in user's inbox. */
+    int[] inbox(String user, int limit) throws SQLException {
+        Object page = invoke(mailbox, messages, user, inbox, null, 0, limit);
+        List<?> list = (List<?>) get(pageMessages, page);
+        int[] ids = new int[list.size()];
+        for (int i = 0; i < ids.length; i++){
+            ids[i] = (Integer) get(msgId, list.get(i));
+        }
+        return ids;
+    }
+
+    /** Reads (and marks read) the given messages of user's. */
+    List<?> read(String user, int[] ids) throws SQLException {
+        return (List<?>) invoke(read, messages, user, ids);
+    }
+
+    /**
+     * Read_Message as a user goes through it: list the newest pageSize
+     * messages of the inbox, then open the first count of them.
+     */
+    List<?> readInbox(String user, int pageSize, int count) throws SQLException {
+        int[] ids = inbox(user, pageSize);
+        return read(user, ids.length > count ? Arrays.copyOf(ids, count) : ids);
+    }
+
+    public void close(){
+        call(cleanup, esql);
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) throws SQLException {
+        try{
+            return method.invoke(target, args);
+        }catch (InvocationTargetException e){
+            throw unwrap(e);
+        }catch (IllegalAccessException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // for calls that declare no SQLException
+    private static Object call(Method method, Object target){
+        try{
+            return invoke(method, target);
+        }catch (SQLException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static SQLException unwrap(InvocationTargetException e){
+        Throwable cause = e.getCause();
+        if (cause instanceof SQLException)
+            return (SQLException) cause;
+        if (cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+        if (cause instanceof Error)
+            throw (Error) cause;
+        return new SQLException(cause);
+    }
+
+    private static Object get(Field field, Object target){
+        try{
+            return field.get(target);
+        }catch (IllegalAccessException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Method method(Class<?> type, String name, Class<?>... params) throws NoSuchMethodException {
+        Method method = type.getDeclaredMethod(name, params);
+        method.setAccessible(true);
+        return method;
+    }
+
+    private static Field field(Class<?> type, String name) throws NoSuchFieldException {
+        Field field = type.getDeclaredField(name);
+        field.setAccessible(true);
+        return field;
+    }
+
+    private static Object enumConstant(Class<?> type, String name){
+        for (Object constant : type.getEnumConstants()){
+            if (((Enum<?>) constant).name().equals(name))
+                return constant;
+        }
+        throw new IllegalStateException(type.getName() + " has no " + name);
+    }
+
+    /** A -Dprofnetwork.bench.name property, or def. */
+    static String setting(String name, String def){
+        return System.getProperty("profnetwork.bench." + name, def);
+    }
+
+    private static String env(String name, String def){
+        String value = System.getenv(name);
+        return value == null || value.isEmpty() ? def : value;
+    }
+
+    /** The trimmed values of one column, row by row. */
+    static List<String> column(List<List<String>> rows, int index){
+        List<String> result = new ArrayList<String>(rows.size());
+        for (List<String> row : rows){
+            String value = row.get(index);
+            result.add(value == null ? "" : value.trim());
+        }
+        return result;
+    }
+}//end ProfNetworkClient
@@ -0,0 +1,126 @@
+package profnetwork.bench;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * One benchmark per menu action, each making the same service call the
+ * menu makes.  Every benchmark runs in throughput mode (ops/ms) and in
+ * sample mode, which reports latency percentiles (p50 ... p99.99, max).
+ *
+ * Connection settings come from system properties, which JMH passes on
+ * to the forked JVMs:
+ *
+ *   -Dprofnetwork.bench.db    database name  (default $DB_NAME, else ${USER}_DB)
+ *   -Dprofnetwork.bench.port  server port    (default $PGPORT, else 5432)
+ *   -Dprofnetwork.bench.user  login          (default $USER)
+ *   -Dprofnetwork.bench.data  CSV snapshot loaded into an empty USR (default data)
+ *   -Dprofnetwork.bench.users users sampled for the calls (default 1000)
+ *
+ * The application's own knobs work as usual, e.g.
+ * -Dprofnetwork.dispatch.async=false to time sendMessage as a direct
+ * insert, or -Dprofnetwork.profileCache.size=0 to time viewUserProfile
+ * without the cache.  sendMessage adds rows to MESSAGE on every call.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class ServiceBenchmark {
+    // rows per page, as in the menus
+    private static final int PAGE_SIZE = 20;
+    private static final int SEARCH_PAGE_SIZE = 10;
+    // messages opened per readMessage call
+    private static final int READ_COUNT = 5;
+
+    /* The shared client and the users the calls are spread across. */
+    @State(Scope.Benchmark)
+    public static class Network {
+        ProfNetworkClient client;
+        UserSample users;
+
+        @Setup(Level.Trial)
+        public void connect() throws SQLException {
+            client = ProfNetworkClient.connect();
+            client.seed(new File(ProfNetworkClient.setting("data", "data")));
+            users = UserSample.draw(client, Integer.parseInt(ProfNetworkClient.setting("users", "1000")));
+        }
+
+        @TearDown(Level.Trial)
+        public void close(){
+            client.close();
+        }
+    }//end Network
+
+    /* Per-thread choice of user, so threads do not share a Random. */
+    @State(Scope.Thread)
+    public static class Caller {
+        final Random random = new Random();
+
+        int pick(Network network){
+            return network.users.pick(random);
+        }
+    }//end Caller
+
+    @Benchmark
+    public String logIn(Network network, Caller caller) throws SQLException {
+        int i = caller.pick(network);
+        return network.client.logIn(network.users.ids[i], network.users.passwords[i]);
+    }
+
+    @Benchmark
+    public Object viewUserProfile(Network network, Caller caller) throws SQLException {
+        return network.client.profile(network.users.ids[caller.pick(network)], network.users.ids[caller.pick(network)]);
+    }
+
+    @Benchmark
+    public List<?> viewConnections(Network network, Caller caller) throws SQLException {
+        return network.client.connections(network.users.ids[caller.pick(network)]);
+    }
+
+    /* The mutual connections line of View_User_Profile. */
+    @Benchmark
+    public List<String> mutualConnections(Network network, Caller caller) throws SQLException {
+        return network.client.mutual(network.users.ids[caller.pick(network)], network.users.ids[caller.pick(network)]);
+    }
+
+    /* Search_User option 1: exact full name. */
+    @Benchmark
+    public List<?> searchUserByName(Network network, Caller caller) throws SQLException {
+        return network.client.findByName(network.users.names[caller.pick(network)]);
+    }
+
+    /* Search_User option 2: the first page for a three letter prefix. */
+    @Benchmark
+    public List<?> searchUser(Network network, Caller caller) throws SQLException {
+        return network.client.search(network.users.prefix(caller.pick(network)), SEARCH_PAGE_SIZE, 0);
+    }
+
+    @Benchmark
+    public Object sendMessage(Network network, Caller caller) throws SQLException {
+        return network.client.send(network.users.ids[caller.pick(network)], network.users.ids[caller.pick(network)], "benchmark");
+    }
+
+    /* Read_Message: list the inbox, then open the newest few. */
+    @Benchmark
+    public List<?> readMessage(Network network, Caller caller) throws SQLException {
+        return network.client.readInbox(network.users.ids[caller.pick(network)], PAGE_SIZE, READ_COUNT);
+    }
+}//end ServiceBenchmark
@@ -0,0 +1,41 @@
+package profnetwork.bench;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * A random sample of existing users (id, password, name) that the
+ * benchmark and load driver spread their calls across.
+ */
+final class UserSample {
+    final String[] ids;
+    final String[] passwords;
+    final String[] names;
+
+    private UserSample(List<List<String>> rows){
+        this.ids = ProfNetworkClient.column(rows, 0).toArray(new String[0]);
+        this.passwords = ProfNetworkClient.column(rows, 1).toArray(new String[0]);
+        this.names = ProfNetworkClient.column(rows, 2).toArray(new String[0]);
+    }
+
+    /** Up to count users picked at random by the database. */
+    static UserSample draw(ProfNetworkClient client, int count) throws SQLException {
+        List<List<String>> rows = client.query(
+                "SELECT userId, password, name FROM USR ORDER BY random() LIMIT ?", count);
+        if (rows.isEmpty())
+            throw new IllegalStateException("USR is empty; nothing to benchmark");
+        return new UserSample(rows);
+    }
+
+    /** Index of a random sampled user. */
+    int pick(Random random){
+        return random.nextInt(ids.length);
+    }
+
+    /** The first letters of a user's name, as typed into Search_User. */
+    String prefix(int i){
+        String name = names[i];
+        return name.substring(0, Math.min(3, name.length()));
+    }
+}//end UserSample
@@ -0,0 +1,374 @@
+package profnetwork.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+
+/*
+ * Writes a synthetic snapshot in the layout of data/*.csv, plus a
+ * Message.csv, at any scale:
+ *
+ *   java -cp bench/target/benchmarks.jar profnetwork.bench.WorkloadGenerator <out dir>
+ *        [--users 1000000] [--degree 20] [--alpha 2.5] [--max-degree 5000]
+ *        [--messages 10] [--seed 1]
+ *
+ * Load the result with ProfNetwork's -load <out dir>.
+ *
+ * Every row is written as soon as it is made; memory use is a weight
+ * and a cumulative weight per user (12 bytes) whatever the row counts.
+ *
+ * Connections follow the Chung-Lu model: each user gets a weight drawn
+ * from a Pareto distribution with exponent alpha and mean degree, capped
+ * at max-degree, and a pair is connected with probability proportional
+ * to the product of the two weights.  Expected degrees then equal the
+ * weights, so the degree distribution has the same power-law tail.  Each
+ * pair is only ever drawn from its lower-numbered user, which keeps
+ * CONNECTION_USR free of duplicates in either direction.  Message
+ * senders and receivers are drawn by the same weights, so well-connected
+ * users also have the busiest inboxes.
+ */
+public final class WorkloadGenerator {
+    private static final String[] FIRST = {
+        "Ava", "Liam", "Olivia", "Noah", "Emma", "Elijah", "Sophia", "James", "Amelia", "Lucas",
+        "Mia", "Mateo", "Harper", "Levi", "Evelyn", "Ethan", "Luna", "Asher", "Camila", "Leo",
+        "Aria", "Jack", "Chloe", "Owen", "Nora", "Wyatt", "Layla", "Kai", "Zoe", "Ezra",
+        "Priya", "Wei", "Sofia", "Omar", "Yuki", "Aarav", "Fatima", "Diego", "Ingrid", "Kwame",
+    };
+    private static final String[] LAST = {
+        "Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia", "Miller", "Davis", "Rodriguez", "Martinez",
+        "Hernandez", "Lopez", "Gonzalez", "Wilson", "Anderson", "Thomas", "Taylor", "Moore", "Jackson", "Martin",
+        "Lee", "Perez", "Thompson", "White", "Harris", "Sanchez", "Clark", "Ramirez", "Lewis", "Robinson",
+        "Nguyen", "Chen", "Patel", "Kim", "Singh", "Okafor", "Novak", "Rossi", "Silva", "Tanaka",
+    };
+    private static final String[] COMPANY_HEAD = {
+        "Blue", "Bright", "Cloud", "Data", "Edge", "Flux", "Green", "Hyper", "Iron", "Jet",
+        "Kite", "Lumen", "Meta", "Nova", "Omni", "Pixel", "Quant", "Red", "Sky", "Terra",
+    };
+    private static final String[] COMPANY_TAIL = {
+        "works", "labs", "soft", "bridge", "scape", "wave", "point", "stream", "forge", "hub",
+    };
+    private static final String[] ROLES = {
+        "Software Engineer", "Data Analyst", "Product Manager", "Designer", "Accountant",
+        "Sales Associate", "Financial Advisor", "Nurse", "Teacher", "Research Scientist",
+        "Marketing Manager", "Consultant", "Recruiter", "Civil Engineer", "Technician",
+    };
+    private static final String[] LOCATIONS = {
+        "Riverside", "Los Angeles", "San Francisco", "Seattle", "Austin", "New York", "Chicago",
+        "Boston", "Denver", "Atlanta", "London", "Berlin", "Toronto", "Bangalore", "Singapore",
+    };
+    private static final String[] SCHOOL_HEAD = {
+        "North", "South", "East", "West", "Central", "Pacific", "Atlantic", "Lakeside", "Valley", "Summit",
+    };
+    private static final String[] SCHOOL_TAIL = {
+        "State University", "Institute of Technology", "College", "University", "Polytechnic",
+    };
+    private static final String[] MAJORS = {
+        "computer science", "economics", "biology", "mathematics", "history", "physics",
+        "mechanical engineering", "psychology", "nursing", "business", "chemistry", "english",
+    };
+    private static final String[] WORDS = {
+        "hi", "thanks", "for", "the", "connection", "are", "you", "free", "next", "week",
+        "great", "meeting", "let's", "catch", "up", "about", "project", "role", "congrats", "on",
+        "new", "job", "can", "we", "talk", "soon", "interview", "coffee", "resume", "referral",
+    };
+
+    private final int users;
+    private final double degree;
+    private final double alpha;
+    private final double maxDegree;
+    private final double messages;
+    private final long seed;
+
+    private final int companies;
+    private final int schools;
+    // per user expected degree, and its running sum for weighted draws
+    private float[] weight;
+    private double[] cumulative;
+
+    WorkloadGenerator(int users, double degree, double alpha, double maxDegree, double messages, long seed){
+        if (users < 2)
+            throw new IllegalArgumentException("--users must be at least 2");
+        if (alpha <= 2)
+            throw new IllegalArgumentException("--alpha must be above 2 for the mean degree to exist");
+        this.users = users;
+        this.degree = degree;
+        this.alpha = alpha;
+        this.maxDegree = Math.min(maxDegree, users - 1);
+        this.messages = messages;
+        this.seed = seed;
+        this.companies = Math.max(COMPANY_HEAD.length, users / 50);
+        this.schools = Math.max(SCHOOL_HEAD.length, users / 500);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0 || args.length % 2 == 0){
+            System.err.println("Usage: WorkloadGenerator <out dir> [--users n] [--degree d] [--alpha a] "
+                    + "[--max-degree d] [--messages m] [--seed s]");
+            System.exit(1);
+        }
+        int users = 1000000;
+        double degree = 20, alpha = 2.5, maxDegree = 5000, messages = 10;
+        long seed = 1;
+        for (int i = 1; i < args.length; i += 2){
+            String value = args[i + 1];
+            if (args[i].equals("--users")) users = Integer.parseInt(value);
+            else if (args[i].equals("--degree")) degree = Double.parseDouble(value);
+            else if (args[i].equals("--alpha")) alpha = Double.parseDouble(value);
+            else if (args[i].equals("--max-degree")) maxDegree = Double.parseDouble(value);
+            else if (args[i].equals("--messages")) messages = Double.parseDouble(value);
+            else if (args[i].equals("--seed")) seed = Long.parseLong(value);
+            else throw new IllegalArgumentException("Unknown option " + args[i]);
+        }
+        File dir = new File(args[0]);
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create " + dir);
+        new WorkloadGenerator(users, degree, alpha, maxDegree, messages, seed).run(dir);
+    }//end main
+
+    void run(File dir) throws IOException {
+        long start = System.nanoTime();
+        weights();
+        writeUsers(new File(dir, "usr.csv"));
+        writeWork(new File(dir, "Work_Ex.csv"));
+        writeEducation(new File(dir, "Edu_Det.csv"));
+        writeConnections(new File(dir, "Connection.csv"));
+        writeMessages(new File(dir, "Message.csv"));
+        System.out.printf("Generated %d users in %.1fs%n", users, (System.nanoTime() - start) / 1e9);
+    }
+
+    /*
+     * Pareto weights with the requested mean: x_min * (alpha-1)/(alpha-2)
+     * is the mean, and x_min * u^(-1/(alpha-1)) draws one value.
+     */
+    private void weights(){
+        Random random = new Random(seed);
+        double xMin = degree * (alpha - 2) / (alpha - 1);
+        weight = new float[users];
+        cumulative = new double[users];
+        double sum = 0;
+        for (int i = 0; i < users; i++){
+            double w = xMin * Math.pow(1 - random.nextDouble(), -1 / (alpha - 1));
+            weight[i] = (float) Math.min(w, maxDegree);
+            sum += weight[i];
+            cumulative[i] = sum;
+        }
+    }
+
+    /* A user drawn with probability proportional to its weight. */
+    private int weighted(Random random){
+        double target = random.nextDouble() * cumulative[users - 1];
+        int i = Arrays.binarySearch(cumulative, target);
+        return Math.min(i < 0 ? -i - 1 : i, users - 1);
+    }
+
+    static String userId(int i){
+        return FIRST[i % FIRST.length] + "." + LAST[(i / FIRST.length) % LAST.length] + i;
+    }
+
+    /* First, middle initial and last name: about 40k distinct names. */
+    static String name(int i){
+        int combos = FIRST.length * LAST.length;
+        return FIRST[i % FIRST.length] + " " + (char) ('A' + (i / combos) % 26) + ". " + LAST[(i / FIRST.length) % LAST.length];
+    }
+
+    private void writeUsers(File file) throws IOException {
+        Random random = new Random(seed + 1);
+        Table out = new Table(file, "User Id,Password,email,Full Name,dateofbirth");
+        try{
+            for (int i = 0; i < users; i++){
+                String id = userId(i);
+                out.field(id).field(Long.toString(random.nextLong() & 0xffffffffffL, 36))
+                        .field(id.toLowerCase() + "@example.com")
+                        .field(name(i))
+                        .field(date(1950 + random.nextInt(56), random)).end();
+            }
+        }finally{
+            out.close();
+        }
+    }
+
+    /* 0-3 consecutive jobs per user; the last one has no end date. */
+    private void writeWork(File file) throws IOException {
+        Random random = new Random(seed + 2);
+        Table out = new Table(file, "userId,company,role,location,startDate,endDate");
+        try{
+            for (int i = 0; i < users; i++){
+                int jobs = random.nextInt(4);
+                int year = 1990 + random.nextInt(25);
+                for (int j = 0; j < jobs; j++){
+                    int end = year + 1 + random.nextInt(6);
+                    out.field(userId(i)).field(company(skewed(companies, random)))
+                            .field(ROLES[random.nextInt(ROLES.length)])
+                            .field(LOCATIONS[random.nextInt(LOCATIONS.length)])
+                            .field(date(year, random)).field(j == jobs - 1 ? "" : date(end, random)).end();
+                    year = end;
+                }
+            }
+        }finally{
+            out.close();
+        }
+    }
+
+    /* A bachelor's for most users, then sometimes a master's. */
+    private void writeEducation(File file) throws IOException {
+        Random random = new Random(seed + 3);
+        Table out = new Table(file, "userid,instituitionName,major,degree,startdate,enddate");
+        try{
+            for (int i = 0; i < users; i++){
+                int year = 1975 + random.nextInt(40);
+                if (random.nextInt(10) == 0)
+                    continue;
+                out.field(userId(i)).field(school(skewed(schools, random)))
+                        .field(MAJORS[random.nextInt(MAJORS.length)]).field("bachelor")
+                        .field(date(year, random)).field(date(year + 4, random)).end();
+                if (random.nextInt(3) == 0){
+                    out.field(userId(i)).field(school(skewed(schools, random)))
+                            .field(MAJORS[random.nextInt(MAJORS.length)]).field("master")
+                            .field(date(year + 5, random)).field(date(year + 7, random)).end();
+                }
+            }
+        }finally{
+            out.close();
+        }
+    }
+
+    /*
+     * User i draws about weight[i] partners and keeps those numbered above
+     * it; lower-numbered partners draw i in turn, so expected degrees still
+     * match the weights.  Pairs are written in a random direction, 80%
+     * accepted, 10% pending and 10% rejected.
+     */
+    private void writeConnections(File file) throws IOException {
+        Random random = new Random(seed + 4);
+        Table out = new Table(file, "userid,connectionid,status");
+        long rows = 0;
+        int[] picked = new int[16];
+        try{
+            for (int i = 0; i < users; i++){
+                double w = weight[i];
+                int draws = (int) w + (random.nextDouble() < w - (int) w ? 1 : 0);
+                if (picked.length < draws)
+                    picked = new int[draws];
+                int kept = 0;
+                for (int d = 0; d < draws; d++){
+                    int j = weighted(random);
+                    if (j > i)
+                        picked[kept++] = j;
+                }
+                Arrays.sort(picked, 0, kept);
+                for (int k = 0; k < kept; k++){
+                    if (k > 0 && picked[k] == picked[k - 1])
+                        continue;
+                    int roll = random.nextInt(10);
+                    String status = roll < 8 ? "Accept" : roll == 8 ? "Request" : "Reject";
+                    boolean flip = random.nextBoolean();
+                    out.field(userId(flip ? picked[k] : i)).field(userId(flip ? i : picked[k])).field(status).end();
+                    rows++;
+                }
+            }
+        }finally{
+            out.close();
+        }
+        System.out.printf("%d connections (mean degree %.1f)%n", rows, 2.0 * rows / users);
+    }
+
+    /* Short messages over the last year, 90% already read. */
+    private void writeMessages(File file) throws IOException {
+        Random random = new Random(seed + 5);
+        Table out = new Table(file, "msgId,senderId,receiverId,contents,sendTime,deleteStatus,status");
+        long count = Math.round(users * messages);
+        long now = System.currentTimeMillis();
+        StringBuilder contents = new StringBuilder();
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        try{
+            for (long m = 1; m <= count; m++){
+                int from = weighted(random);
+                int to = weighted(random);
+                if (to == from)
+                    to = (from + 1) % users;
+                contents.setLength(0);
+                for (int w = 2 + random.nextInt(10); w > 0; w--){
+                    contents.append(WORDS[random.nextInt(WORDS.length)]).append(w > 1 ? " " : ".");
+                }
+                long sent = now - (long) (random.nextDouble() * 365L * 24 * 3600 * 1000);
+                out.field(Long.toString(m)).field(userId(from)).field(userId(to)).field(contents.toString())
+                        .field(format.format(new Date(sent))).field("0")
+                        .field(random.nextInt(10) == 0 ? "Delivered" : "Read").end();
+            }
+        }finally{
+            out.close();
+        }
+    }
+
+    /* Index in [0, n) with a heavy head: a few big employers and schools. */
+    private static int skewed(int n, Random random){
+        double u = random.nextDouble();
+        return (int) (n * u * u * u);
+    }
+
+    private static String company(int c){
+        String name = COMPANY_HEAD[c % COMPANY_HEAD.length] + COMPANY_TAIL[(c / COMPANY_HEAD.length) % COMPANY_TAIL.length];
+        int series = c / (COMPANY_HEAD.length * COMPANY_TAIL.length);
+        return series == 0 ? name : name + " " + series;
+    }
+
+    private static String school(int s){
+        String name = SCHOOL_HEAD[s % SCHOOL_HEAD.length] + " " + SCHOOL_TAIL[(s / SCHOOL_HEAD.length) % SCHOOL_TAIL.length];
+        int campus = s / (SCHOOL_HEAD.length * SCHOOL_TAIL.length);
+        return campus == 0 ? name : name + " " + campus;
+    }
+
+    private static String date(int year, Random random){
+        int month = 1 + random.nextInt(12);
+        int day = 1 + random.nextInt(28);
+        return year + (month < 10 ? "/0" : "/") + month + (day < 10 ? "/0" : "/") + day;
+    }
+
+    /* One CSV file, written row by row with RFC 4180 quoting. */
+    private static final class Table {
+        private final File file;
+        private final Writer out;
+        private final long start = System.nanoTime();
+        private long rows;
+        private boolean first = true;
+
+        Table(File file, String header) throws IOException {
+            this.file = file;
+            this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 1 << 16);
+            out.write(header);
+            out.write('\n');
+        }
+
+        Table field(String value) throws IOException {
+            if (!first)
+                out.write(',');
+            first = false;
+            if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0){
+                out.write(value);
+            }else{
+                out.write('"');
+                out.write(value.replace("\"", "\"\""));
+                out.write('"');
+            }
+            return this;
+        }
+
+        void end() throws IOException {
+            out.write('\n');
+            first = true;
+            rows++;
+        }
+
+        void close() throws IOException {
+            out.close();
+            System.out.printf("%s: %d rows in %.1fs%n", file.getName(), rows, (System.nanoTime() - start) / 1e9);
+        }
+    }//end Table
+}//end WorkloadGenerator
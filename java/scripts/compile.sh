@@ -11,3 +11,12 @@ javac -d $DIR/../classes $DIR/../src/ProfNetwork.java
 #Use your database name, port number and login
 java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar ProfNetwork $DB_NAME $PGPORT $USER
 
+
+#or bulk load the CSV snapshot from the client instead of sql/src/load_data.sql
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar ProfNetwork $DB_NAME $PGPORT $USER -load $DIR/../../data
+
+#or serve the menus to local TCP clients (e.g. nc localhost 5433), one session each
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar ProfNetwork $DB_NAME $PGPORT $USER -serve 5433
+
+#query timings: slow statements over 200ms go to slow.log, Prometheus text on http://127.0.0.1:9464/metrics (and /dump)
+#java -Dprofnetwork.metrics.slowMs=200 -Dprofnetwork.metrics.slowLog=slow.log -Dprofnetwork.metrics.port=9464 -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar ProfNetwork $DB_NAME $PGPORT $USER
@@ -15,25 +15,112 @@ Shreya Godishala-862313765
 Shubham Sharma- 862253820
 */
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class ProfNetwork {
 
-    // reference to physical database connection.
-    private Connection _connection = null;
+    // pool of physical database connections shared by every menu action.
+    private ConnectionPool _pool = null;
+
+    // in-memory copy of connection_usr, loaded on first use; see graph().
+    private volatile ConnectionGraph _graph = null;
+    private volatile boolean _graphOff = "false".equals(System.getProperty("profnetwork.graph"));
+
+    // connection suggestions, created on first use; see recommender().
+    private volatile Recommender _recommender = null;
+
+    // shared-connection lookups, created on first use; see mutuals().
+    private volatile MutualConnections _mutuals = null;
+
+    // work/education search index, loaded on first use and rebuilt when
+    // it expires or after a bulk load; see profileIndex().  Loading
+    // streams two whole tables, so it has a lock of its own.
+    private volatile ProfileIndex _profileIndex = null;
+    private final ReentrantLock _profileIndexLock = new ReentrantLock();
+
+    // profiles read through View_User_Profile; see profiles().
+    private final ProfileCache _profiles = new ProfileCache();
+
+    // write-behind message sender, started on first use; see dispatcher().
+    private volatile MessageDispatcher _dispatcher = null;
+
+    // the request/response API the menus are written against
+    private final ProfileService _profileService = new ProfileService(this);
+    private final ConnectionService _connectionService = new ConnectionService(this);
+    private final MessageService _messageService = new MessageService(this);
+
+    // per-statement latency, rows and errors; see metrics().
+    private final QueryMetrics _metrics = new QueryMetrics();
+
+    // rows pulled per round trip by forEachRow.
+    private static final int FETCH_SIZE = (int) setting("fetchSize", 100);
 
     // handling the keyboard inputs through a BufferedReader
-    // This variable can be global for convenience.
-    static BufferedReader in = new BufferedReader(
+    // This variable can be global for convenience: in server mode it
+    // reads from the socket of the session running on the calling thread.
+    static final BufferedReader in = new SessionInput(
             new InputStreamReader(System.in));
 
     /**
@@ -53,8 +140,11 @@ public class ProfNetwork {
             String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
             System.out.println ("Connection URL: " + url + "\n");
 
-            // obtain a physical connection
-            this._connection = DriverManager.getConnection(url, user, passwd);
+            // set up the pool and open the first physical connection so a
+            // bad url or login fails here rather than on the first query
+            this._pool = new ConnectionPool(url, user, passwd);
+            this._pool.warmUp();
+            this._metrics.start();
             System.out.println("Done");
         }catch (Exception e){
             System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -65,20 +155,30 @@ public class ProfNetwork {
 
     /**
      * Method to execute an update SQL statement.  Update SQL instructions
-     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.  Values are passed
+     * as JDBC parameters bound to the '?' placeholders in the statement.
      *
      * @param sql the input SQL string
+     * @param params values for the '?' placeholders, in order
+     * @return the number of rows affected
      * @throws java.sql.SQLException when update failed
      */
-    public void executeUpdate (String sql) throws SQLException {
-        // creates a statement object
-        Statement stmt = this._connection.createStatement ();
-
-        // issues the update instruction
-        stmt.executeUpdate (sql);
-
-        // close the instruction
-        stmt.close ();
+    public int executeUpdate (String sql, Object... params) throws SQLException {
+        PooledConnection conn = this._pool.borrow();
+        boolean broken = false;
+        long start = System.nanoTime();
+        try {
+            // fetches the cached statement and issues the update instruction
+            int rows = prepare(conn, sql, params).executeUpdate ();
+            this._metrics.record(sql, start, rows, 0);
+            return rows;
+        }catch (SQLException e){
+            this._metrics.failed(sql, e);
+            broken = ConnectionPool.isBroken(conn, e);
+            throw e;
+        }finally{
+            this._pool.release(conn, broken);
+        }
     }//end executeUpdate
 
     /**
@@ -87,114 +187,535 @@ public class ProfNetwork {
      * standard out.
      *
      * @param query the input query string
+     * @param params values for the '?' placeholders, in order
      * @return the number of rows returned
      * @throws java.sql.SQLException when failed to execute the query
      */
-    public int executeQueryAndPrintResult (String query) throws SQLException {
-        // creates a statement object
-        Statement stmt = this._connection.createStatement ();
-
-        // issues the query instruction
-        ResultSet rs = stmt.executeQuery (query);
-
-        /*
-         ** obtains the metadata object for the returned result set.  The metadata
-         ** contains row and column info.
-         */
-        ResultSetMetaData rsmd = rs.getMetaData ();
-        int numCol = rsmd.getColumnCount ();
-        int rowCount = 0;
-
+    public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
         // iterates through the result set and output them to standard out.
-        boolean outputHeader = true;
-        while (rs.next()){
-            if(outputHeader){
-                for(int i = 1; i <= numCol; i++){
-                    System.out.print(rsmd.getColumnName(i) + "\t");
+        return streamRows(query, new RowHandler(){
+            public boolean row(Row row) throws SQLException {
+                int numCol = row.columnCount();
+                if(row.number() == 1){
+                    for(int i = 1; i <= numCol; i++){
+                        System.out.print(row.columnName(i) + "\t");
+                    }
+                    System.out.println();
                 }
-                System.out.println();
-                outputHeader = false;
+                for (int i=1; i<=numCol; ++i)
+                    System.out.print (row.getString (i) + "\t");
+                System.out.println ();
+                return true;
             }
-            for (int i=1; i<=numCol; ++i)
-                System.out.print (rs.getString (i) + "\t");
-            System.out.println ();
-            ++rowCount;
-        }//end while
-        stmt.close ();
-        return rowCount;
-    }//end executeQuery
-    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-        // creates a statement object
-        Statement stmt = this._connection.createStatement ();
-
-        // issues the query instruction
-        ResultSet rs = stmt.executeQuery (query);
-
-        /*
-         ** obtains the metadata object for the returned result set.  The metadata
-         ** contains row and column info.
-         */
-        ResultSetMetaData rsmd = rs.getMetaData ();
-        int numCol = rsmd.getColumnCount ();
-        int rowCount = 0;
+        }, params);
+    }//end executeQueryAndPrintResult
 
+    /**
+     * Method to execute an input query SQL instruction (i.e. SELECT) and
+     * copy every row into memory.  Prefer forEachRow for anything that can
+     * return more than a handful of rows.
+     *
+     * @param query the input query string
+     * @param params values for the '?' placeholders, in order
+     * @return the rows returned, each as a list of column strings
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
         // iterates through the result set and saves the data returned by the query.
-        boolean outputHeader = false;
-        List<List<String>> result  = new ArrayList<List<String>>();
-        while (rs.next()){
-            List<String> record = new ArrayList<String>();
-            for (int i=1; i<=numCol; ++i)
-                record.add(rs.getString (i));
-            result.add(record);
-        }//end while
-        stmt.close ();
+        final List<List<String>> result  = new ArrayList<List<String>>();
+        forEachRow(query, new RowHandler(){
+            public boolean row(Row row) throws SQLException {
+                List<String> record = new ArrayList<String>();
+                for (int i=1; i<=row.columnCount(); ++i)
+                    record.add(row.getString (i));
+                result.add(record);
+                return true;
+            }
+        }, params);
         return result;
     }//end executeQueryAndReturnResult
 
     /**
-     * Method to execute an input query SQL instruction (i.e. SELECT).  This
-     * method issues the query to the DBMS and returns the number of results
+     * Method to execute an input query SQL instruction (i.e. SELECT) and
+     * hand the rows to a callback one at a time.  The whole result comes
+     * back in one round trip on an autocommit connection, which suits the
+     * short lookups most callers make; use streamRows for results that
+     * can be large.
      *
      * @param query the input query string
-     * @return the number of rows returned
+     * @param handler called once per row; returning false stops the scan
+     * @param params values for the '?' placeholders, in order
+     * @return the number of rows handed to the callback
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public int forEachRow (String query, RowHandler handler, Object... params) throws SQLException {
+        return scan(false, query, handler, params);
+    }//end forEachRow
+
+    /**
+     * Like forEachRow, but pulls rows from the server fetchSize at a time
+     * (-Dprofnetwork.fetchSize, default 100) through a cursor, so a large
+     * result never sits in memory at once.  The cursor needs a
+     * transaction, which costs an extra round trip to commit.
+     *
+     * @param query the input query string
+     * @param handler called once per row; returning false stops the scan
+     * @param params values for the '?' placeholders, in order
+     * @return the number of rows handed to the callback
      * @throws java.sql.SQLException when failed to execute the query
      */
-    public int executeQuery (String query) throws SQLException {
-        // creates a statement object
-        Statement stmt = this._connection.createStatement ();
+    public int streamRows (String query, RowHandler handler, Object... params) throws SQLException {
+        return scan(true, query, handler, params);
+    }//end streamRows
 
-        // issues the query instruction
-        ResultSet rs = stmt.executeQuery (query);
+    private int scan (boolean cursor, String query, RowHandler handler, Object... params) throws SQLException {
+        PooledConnection conn = this._pool.borrow();
+        boolean broken = false;
+        // the postgres driver only honours the fetch size inside a transaction
+        boolean autoCommit = false;
+        boolean committed = false;
+        long start = System.nanoTime();
+        try {
+            if (cursor){
+                autoCommit = conn.connection.getAutoCommit();
+                if (autoCommit)
+                    conn.connection.setAutoCommit(false);
+            }
+            PreparedStatement stmt = prepare(conn, query, params);
+            stmt.setFetchSize(cursor ? FETCH_SIZE : 0);
 
-        int rowCount = 0;
+            // issues the query instruction
+            ResultSet rs = stmt.executeQuery ();
+            Row row = new Row(rs);
+            int rowCount = 0;
+            try {
+                while (rs.next()){
+                    ++rowCount;
+                    row.advance();
+                    if (!handler.row(row))
+                        break;
+                }//end while
+            }finally{
+                rs.close ();
+            }
+            if (autoCommit)
+                conn.connection.commit();
+            committed = true;
+            this._metrics.record(query, start, rowCount, row.bytes());
+            return rowCount;
+        }catch (SQLException e){
+            this._metrics.failed(query, e);
+            broken = ConnectionPool.isBroken(conn, e);
+            throw e;
+        }finally{
+            // hand the connection back the way we found it
+            if (autoCommit && !broken){
+                try{
+                    if (!committed)
+                        conn.connection.rollback();
+                    conn.connection.setAutoCommit(true);
+                }catch (SQLException e){
+                    broken = true;
+                }
+            }
+            this._pool.release(conn, broken);
+        }
+    }//end scan
 
-        // iterates through the result set and count nuber of results.
-        if(rs.next()){
-            rowCount++;
-        }//end while
-        stmt.close ();
-        return rowCount;
+    /**
+     * Method to execute an input query SQL instruction (i.e. SELECT) and
+     * return the first column of the first row, trimmed, or null when the
+     * query returns no rows.
+     *
+     * @param query the input query string
+     * @param params values for the '?' placeholders, in order
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public String executeQueryForString (String query, Object... params) throws SQLException {
+        final String[] value = new String[1];
+        forEachRow(query, new RowHandler(){
+            public boolean row(Row row) throws SQLException {
+                value[0] = row.getId(1);
+                return false;
+            }
+        }, params);
+        return value[0];
+    }//end executeQueryForString
+
+    /**
+     * Existence probe kept for older callers: returns 1 when the query
+     * yields at least one row and 0 otherwise.  It does not count rows;
+     * use exists() for new code and count() when the number matters.
+     *
+     * @param query the input query string
+     * @param params values for the '?' placeholders, in order
+     * @return 1 if the query returns any row, else 0
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public int executeQuery (String query, Object... params) throws SQLException {
+        return exists(query, params) ? 1 : 0;
     }
+
+    /**
+     * Tells whether the query returns at least one row.  The query is
+     * wrapped in SELECT EXISTS (...) so the server stops at the first
+     * match and only a single boolean comes back.
+     *
+     * @param query the input query string
+     * @param params values for the '?' placeholders, in order
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public boolean exists (String query, Object... params) throws SQLException {
+        final boolean[] found = new boolean[1];
+        forEachRow("SELECT EXISTS (" + query + ")", new RowHandler(){
+            public boolean row(Row row) throws SQLException {
+                found[0] = row.getBoolean(1);
+                return false;
+            }
+        }, params);
+        return found[0];
+    }//end exists
+
+    /**
+     * Returns the number of rows the query would produce.  The query is
+     * wrapped in SELECT COUNT(*) FROM (...) so the counting happens on
+     * the server and only the total comes back.
+     *
+     * @param query the input query string
+     * @param params values for the '?' placeholders, in order
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public long count (String query, Object... params) throws SQLException {
+        final long[] total = new long[1];
+        forEachRow("SELECT COUNT(*) FROM (" + query + ") AS counted", new RowHandler(){
+            public boolean row(Row row) throws SQLException {
+                total[0] = row.getLong(1);
+                return false;
+            }
+        }, params);
+        return total[0];
+    }//end count
+
+    /**
+     * Returns the current value of a sequence on one pooled connection.
+     * currval is session local, so this only sees values drawn on
+     * whichever connection the pool hands out here, which is rarely the
+     * one that ran the insert.
+     *
+     * @deprecated read generated keys with INSERT ... RETURNING instead,
+     *             e.g. executeQueryForString("INSERT ... RETURNING msgId")
+     */
+    @Deprecated
     public int getCurrSeqVal(String sequence) throws SQLException {
-        Statement stmt = this._connection.createStatement ();
+        PooledConnection conn = this._pool.borrow();
+        boolean broken = false;
+        long start = System.nanoTime();
+        try {
+            ResultSet rs = prepare(conn, "SELECT currval(?)", new Object[]{ sequence }).executeQuery ();
+            int value = rs.next() ? rs.getInt(1) : -1;
+            rs.close ();
+            this._metrics.record("SELECT currval(?)", start, value == -1 ? 0 : 1, 8);
+            return value;
+        }catch (SQLException e){
+            this._metrics.failed("SELECT currval(?)", e);
+            broken = ConnectionPool.isBroken(conn, e);
+            throw e;
+        }finally{
+            this._pool.release(conn, broken);
+        }
+    }
 
-        ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-        if (rs.next())
-            return rs.getInt(1);
-        return -1;
+    /**
+     * Method to run one update SQL statement for many sets of values in a
+     * single JDBC batch and a single transaction: either every row is
+     * applied or none is.
+     *
+     * @param sql the input SQL string
+     * @param rows one array of '?' values per execution
+     * @return the total number of rows affected
+     * @throws java.sql.SQLException when the batch failed (nothing is applied)
+     */
+    public int executeBatch (String sql, List<Object[]> rows) throws SQLException {
+        return executeBatch(sql, rows, null);
     }
 
     /**
-     * Method to close the physical connection if it is open.
+     * Like executeBatch(sql, rows), then runs one more update statement
+     * in the same transaction before committing.
+     *
+     * @param then the follow-up statement, or null for none
+     * @param thenParams values for its '?' placeholders
      */
-    public void cleanup(){
-        try{
-            if (this._connection != null){
-                this._connection.close ();
-            }//end if
+    public int executeBatch (String sql, List<Object[]> rows, String then, Object... thenParams) throws SQLException {
+        if (rows.isEmpty())
+            return 0;
+        PooledConnection conn = this._pool.borrow();
+        boolean broken = false;
+        boolean autoCommit = false;
+        boolean committed = false;
+        PreparedStatement stmt = null;
+        long start = System.nanoTime();
+        try {
+            autoCommit = conn.connection.getAutoCommit();
+            if (autoCommit)
+                conn.connection.setAutoCommit(false);
+            stmt = conn.prepare(sql);
+            for (Object[] row : rows){
+                bind(stmt, row);
+                stmt.addBatch();
+            }
+            int total = 0;
+            for (int n : stmt.executeBatch()){
+                // drivers may report SUCCESS_NO_INFO instead of a count
+                total += n == Statement.SUCCESS_NO_INFO ? 1 : n;
+            }
+            if (then != null)
+                prepare(conn, then, thenParams).executeUpdate();
+            if (autoCommit)
+                conn.connection.commit();
+            committed = true;
+            this._metrics.record(sql, start, total, 0);
+            return total;
         }catch (SQLException e){
-            // ignored.
-        }//end try
+            this._metrics.failed(sql, e);
+            broken = ConnectionPool.isBroken(conn, e);
+            throw e;
+        }finally{
+            if (stmt != null && !broken){
+                try{
+                    stmt.clearBatch();
+                }catch (SQLException e){
+                    broken = true;
+                }
+            }
+            if (autoCommit && !broken){
+                try{
+                    if (!committed)
+                        conn.connection.rollback();
+                    conn.connection.setAutoCommit(true);
+                }catch (SQLException e){
+                    broken = true;
+                }
+            }
+            this._pool.release(conn, broken);
+        }
+    }//end executeBatch
+
+    /*
+     * Looks the statement up in the connection's cache (preparing it on a
+     * miss) and binds the parameters in order.
+     */
+    private static PreparedStatement prepare(PooledConnection conn, String sql, Object[] params) throws SQLException {
+        PreparedStatement stmt = conn.prepare(sql);
+        bind(stmt, params);
+        return stmt;
+    }
+
+    private static void bind(PreparedStatement stmt, Object[] params) throws SQLException {
+        for (int i = 0; i < params.length; i++){
+            if (params[i] == null)
+                stmt.setNull(i + 1, Types.VARCHAR);
+            else
+                stmt.setObject(i + 1, params[i]);
+        }
+    }
+
+    /**
+     * Returns a one line summary of the connection pool counters
+     * (open/idle connections, borrows, wait times, timeouts).
+     */
+    public String poolStats(){
+        return this._pool.stats();
+    }
+
+    /**
+     * Returns the per-query-shape timings of every statement run through
+     * this object; dump() gives a report, prometheus() the export text.
+     */
+    QueryMetrics metrics(){
+        return this._metrics;
+    }
+
+    /**
+     * Returns the in-memory connection graph, loading it from
+     * connection_usr on the first call.  Returns null when it is turned
+     * off (-Dprofnetwork.graph=false) or could not be loaded; callers then
+     * fall back to SQL.
+     */
+    public ConnectionGraph graph(){
+        ConnectionGraph graph = this._graph;
+        if (graph != null || this._graphOff)
+            return graph;
+        synchronized (this){
+            if (this._graph == null && !this._graphOff){
+                try{
+                    long start = System.nanoTime();
+                    this._graph = ConnectionGraph.load(this);
+                    if (Boolean.getBoolean("profnetwork.graph.verbose"))
+                        System.out.printf("Loaded connection graph: %d users in %.1fms%n",
+                                this._graph.userCount(), (System.nanoTime() - start) / 1e6);
+                }catch (SQLException e){
+                    System.err.println("Connection graph unavailable, using SQL: " + e.getMessage());
+                    this._graphOff = true;
+                }
+            }
+            return this._graph;
+        }
+    }//end graph
+
+    /**
+     * Returns the shared "people you may know" engine, created on first use.
+     */
+    public Recommender recommender(){
+        Recommender recommender = this._recommender;
+        if (recommender != null)
+            return recommender;
+        synchronized (this){
+            if (this._recommender == null)
+                this._recommender = new Recommender(this);
+            return this._recommender;
+        }
+    }
+
+    /**
+     * Returns the shared mutual-connections service, created on first use.
+     */
+    public MutualConnections mutuals(){
+        MutualConnections mutuals = this._mutuals;
+        if (mutuals != null)
+            return mutuals;
+        synchronized (this){
+            if (this._mutuals == null)
+                this._mutuals = new MutualConnections(this);
+            return this._mutuals;
+        }
+    }
+
+    /**
+     * Returns the work/education inverted index, building it from
+     * work_expr and educational_details on the first call and again once
+     * it is older than profileIndex.ttlMs, so rows written by another
+     * process (a separate -load, psql) show up.  While one caller
+     * rebuilds an expired index the others keep searching the old one.
+     * -Dprofnetwork.profileIndex.verbose=true prints each build's size
+     * and time.
+     */
+    public ProfileIndex profileIndex() throws SQLException {
+        ProfileIndex index = this._profileIndex;
+        if (index != null && !index.expired())
+            return index;
+        if (index == null)
+            this._profileIndexLock.lock();
+        else if (!this._profileIndexLock.tryLock())
+            return index;
+        try{
+            index = this._profileIndex;
+            if (index == null || index.expired()){
+                long start = System.nanoTime();
+                index = ProfileIndex.load(this);
+                this._profileIndex = index;
+                if (Boolean.getBoolean("profnetwork.profileIndex.verbose"))
+                    System.out.printf("Loaded profile index: %d terms in %.1fms%n",
+                            index.termCount(), (System.nanoTime() - start) / 1e6);
+            }
+            return index;
+        }finally{
+            this._profileIndexLock.unlock();
+        }
+    }//end profileIndex
+
+    /**
+     * Called by BulkLoader when it finishes: drops the profile index so
+     * the next search rebuilds it from the loaded rows.  Waits for a
+     * rebuild in progress, which may have read the tables mid-load.
+     */
+    void dataLoaded(){
+        this._profileIndexLock.lock();
+        try{
+            this._profileIndex = null;
+        }finally{
+            this._profileIndexLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the asynchronous message sender, starting its writer thread
+     * on the first call, or null when -Dprofnetwork.dispatch.async=false.
+     */
+    public MessageDispatcher dispatcher(){
+        MessageDispatcher dispatcher = this._dispatcher;
+        if (dispatcher != null || "false".equals(System.getProperty("profnetwork.dispatch.async")))
+            return dispatcher;
+        synchronized (this){
+            if (this._dispatcher == null)
+                this._dispatcher = new MessageDispatcher(this);
+            return this._dispatcher;
+        }
+    }
+
+    /**
+     * Accounts, profiles and user search.
+     */
+    public ProfileService profileService(){
+        return this._profileService;
+    }
+
+    /**
+     * Connections, requests and suggestions.
+     */
+    public ConnectionService connectionService(){
+        return this._connectionService;
+    }
+
+    /**
+     * Sending, listing, reading and deleting messages.
+     */
+    public MessageService messageService(){
+        return this._messageService;
+    }
+
+    /**
+     * Returns the read-through profile cache.
+     */
+    public ProfileCache profiles(){
+        return this._profiles;
+    }
+
+    // the pool itself, for callers that need a connection of their own
+    // for longer than one statement (bulk loading)
+    ConnectionPool pool(){
+        return this._pool;
+    }
+
+    /**
+     * Reads a numeric tuning knob from the JVM system properties
+     * (e.g. -Dprofnetwork.pool.maxSize=16), falling back to the default.
+     */
+    static long setting(String name, long def){
+        String value = System.getProperty("profnetwork." + name);
+        if (value == null)
+            return def;
+        try{
+            return Long.parseLong(value.trim());
+        }catch (NumberFormatException e){
+            System.err.println("Ignoring invalid value for profnetwork." + name + ": " + value);
+            return def;
+        }
+    }//end setting
+
+    /**
+     * Method to close the physical connections if they are open.
+     */
+    public void cleanup(){
+        MessageDispatcher dispatcher = this._dispatcher;
+        // queued messages still need the pool
+        if (dispatcher != null){
+            dispatcher.close();
+        }//end if
+        if (this._pool != null){
+            this._pool.close ();
+        }//end if
+        this._metrics.close();
     }//end cleanup
 
     /**
@@ -203,12 +724,14 @@ public class ProfNetwork {
      * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
      */
     public static void main (String[] args) {
-        if (args.length != 3) {
+        boolean load = args.length == 5 && args[3].equals("-load");
+        boolean serve = args.length == 5 && args[3].equals("-serve");
+        if (args.length != 3 && !load && !serve) {
             System.err.println (
                     "Usage: " +
                             "java [-classpath <classpath>] " +
                             ProfNetwork.class.getName () +
-                            " <dbname> <port> <user>");
+                            " <dbname> <port> <user> [-load <csv directory> | -serve <tcp port>]");
             return;
         }//end if
 
@@ -226,58 +749,30 @@ public class ProfNetwork {
             String dbport = args[1];
             String user = args[2];
             esql = new ProfNetwork (dbname, dbport, user, "");
-            boolean keepon = true;
-            while(keepon) {
-                // These are sample SQL statements
-                System.out.println("MAIN MENU");
-                System.out.println("---------");
-                System.out.println("1. Create user");
-                System.out.println("2. Log in");
-                System.out.println("9. < EXIT");
-                String authorisedUser = null;
-                switch (readChoice()){
-                    case 1: {CreateUser(esql); break;}
-                    case 2: {authorisedUser = LogIn(esql); break;}
-                    case 9: {keepon = false; break;}
-                    default : {System.out.println("Unrecognized choice!"); break;}
-                }//end switch
-
-                if (authorisedUser != null) {
-                    boolean usermenu = true;
-                    while(usermenu) {
-                        System.out.println("MAIN MENU");
-                        System.out.println("**********************");
-                        System.out.println("Pick your choice from the Menu:");
-                        System.out.println("1. Update Password");
-                        System.out.println("2. Search For a user Profile");
-                        System.out.println("3. View Friend's Profile to Send Message or Connection Request");
-                        System.out.println("4. Messaging Options");
-                        System.out.println("5. Connection Options ");
-                        System.out.println("*********************");
-                        System.out.println("6. EXIT");
-                        switch (readChoice()){
-                            //case 1: FriendList(esql); break;
-                            case 1: User_Profile.UpdateProfile(esql, authorisedUser); break;
-                            case 2: User_Connect.Search_User(esql, authorisedUser);break;
-                            case 3: User_Profile.View_Connections(esql, authorisedUser); break;
-                            case 4: Messenger.Message_Options(esql, authorisedUser);break;
-                            //case 3: NewMessage(esql); break;
-                            //case 3: msg.SendMessage(esql, authorisedUser); break;
-                            case 5: User_Connect.ConnectMenu(esql, authorisedUser); break;
-                            //case 3: UserConnect.Search(esql, authorisedUser);break;
-                            //case 4: Messenger.MessageService(esql, authorisedUser);break;
-                            case 6: usermenu = false; break;
-                            default : System.out.println("Invalid!"); break;
-                        }
-                    }
-                }
-            }//end while
+            if (load) {
+                // bulk load mode: fill the tables from the CSV snapshot and quit
+                new BulkLoader(esql, new File(args[4])).run();
+                return;
+            }//end if
+            if (serve) {
+                // server mode: the same menus, one session per local TCP client
+                new Server(esql, Integer.parseInt(args[4])).run();
+                return;
+            }//end if
+            runMenus(esql);
         }catch(Exception e) {
             System.err.println (e.getMessage ());
         }finally{
             // make sure to cleanup the created table and close the connection.
             try{
                 if(esql != null) {
+                    if (Boolean.getBoolean("profnetwork.pool.stats")){
+                        System.out.println(esql.poolStats());
+                        System.out.println(esql.profiles().stats());
+                        if (esql.dispatcher() != null)
+                            System.out.println(esql.dispatcher().stats());
+                        System.out.print(esql.metrics().dump());
+                    }
                     System.out.print("Disconnecting from database...");
                     esql.cleanup ();
                     System.out.println("Done\n\nBye !");
@@ -287,6 +782,60 @@ public class ProfNetwork {
             }//end try
         }//end try
     }//end main
+
+    /*
+     * The interactive menus for one user session, until they choose EXIT
+     * or their input ends (SessionClosed from readChoice).
+     */
+    static void runMenus(ProfNetwork esql) {
+        boolean keepon = true;
+        while(keepon) {
+            // These are sample SQL statements
+            System.out.println("MAIN MENU");
+            System.out.println("---------");
+            System.out.println("1. Create user");
+            System.out.println("2. Log in");
+            System.out.println("9. < EXIT");
+            String authorisedUser = null;
+            switch (readChoice()){
+                case 1: {CreateUser(esql); break;}
+                case 2: {authorisedUser = LogIn(esql); break;}
+                case 9: {keepon = false; break;}
+                default : {System.out.println("Unrecognized choice!"); break;}
+            }//end switch
+
+            if (authorisedUser != null) {
+                boolean usermenu = true;
+                while(usermenu) {
+                    Messenger.Report_Failures(esql, authorisedUser);
+                    System.out.println("MAIN MENU");
+                    System.out.println("**********************");
+                    System.out.println("Pick your choice from the Menu:");
+                    System.out.println("1. Update Password");
+                    System.out.println("2. Search For a user Profile");
+                    System.out.println("3. View Friend's Profile to Send Message or Connection Request");
+                    System.out.println("4. Messaging Options" + Messenger.Unread_Badge(esql, authorisedUser));
+                    System.out.println("5. Connection Options ");
+                    System.out.println("*********************");
+                    System.out.println("6. EXIT");
+                    switch (readChoice()){
+                        //case 1: FriendList(esql); break;
+                        case 1: User_Profile.UpdateProfile(esql, authorisedUser); break;
+                        case 2: User_Connect.Search_User(esql, authorisedUser);break;
+                        case 3: User_Profile.View_Connections(esql, authorisedUser); break;
+                        case 4: Messenger.Message_Options(esql, authorisedUser);break;
+                        //case 3: NewMessage(esql); break;
+                        //case 3: msg.SendMessage(esql, authorisedUser); break;
+                        case 5: User_Connect.ConnectMenu(esql, authorisedUser); break;
+                        //case 3: UserConnect.Search(esql, authorisedUser);break;
+                        //case 4: Messenger.MessageService(esql, authorisedUser);break;
+                        case 6: usermenu = false; break;
+                        default : System.out.println("Invalid!"); break;
+                    }
+                }
+            }
+        }//end while
+    }//end runMenus
     public static void Greeting(){
         System.out.println(
                 "\n\n*******************************************************\n" +
@@ -303,8 +852,17 @@ public class ProfNetwork {
         // returns only if a correct value is given.
         do {
             System.out.print("Please make your choice: ");
+            String line;
+            try {
+                line = in.readLine();
+            }catch (IOException e) {
+                throw new SessionClosed(e.getMessage());
+            }//end try
+            // end of input: nothing more will ever be typed
+            if (line == null)
+                throw new SessionClosed("input closed");
             try { // read the integer, parse it and break.
-                input = Integer.parseInt(in.readLine());
+                input = Integer.parseInt(line.trim());
                 break;
             }catch (Exception e) {
                 System.out.println("Your input is invalid!");
@@ -330,10 +888,7 @@ public class ProfNetwork {
             System.out.print("\tEnter user Date Of Birth: ");
             String birthdate = in.readLine();
 
-            //Creating empty contact\block lists for a user
-            String query = String.format("INSERT INTO USR (userId, password, email,name,dateOfBirth) VALUES ('%s','%s','%s','%s','%s')", login, password, email,name,birthdate);
-
-            esql.executeUpdate(query);
+            esql.profileService().createUser(login, password, email, name, birthdate);
             System.out.println ("User successfully created!");
         }catch(Exception e){
             System.err.println (e.getMessage ());
@@ -347,11 +902,7 @@ public class ProfNetwork {
             System.out.print("\tEnter user password: ");
             String password = in.readLine();
 
-            String query = String.format("SELECT * FROM USR WHERE userId = '%s' AND password = '%s'", login, password);
-            int userNum = esql.executeQuery(query);
-            if (userNum > 0)
-                return login;
-            return null;
+            return esql.profileService().logIn(login, password);
         }catch(Exception e){
             System.err.println (e.getMessage ());
             return null;
@@ -391,8 +942,7 @@ class User_Profile<getChoice> {
         try{
             System.out.print("\t Please Enter a New Password:");
             pwd = ProfNetwork.in.readLine();
-            String query = String.format("UPDATE usr set password ='%s' WHERE userId = '"+c_user+"'", pwd);
-            esql.executeUpdate(query);
+            esql.profileService().updatePassword(c_user, pwd);
             System.out.println("Password Updated Successful!");
         }
         catch(Exception e){
@@ -401,152 +951,144 @@ class User_Profile<getChoice> {
     }
     public static void View_User_Profile(ProfNetwork esql,String c_user,String u_name)
     {
-        boolean connection= false;
-        List<List<String>> result =  new ArrayList<List<String>>();
-        String query = ("SELECT connectionId AS userId FROM connection_usr WHERE userId='"+u_name+"'AND connectionId ='"+c_user+"' AND status='Accept' UNION ALL SELECT userId FROM connection_usr WHERE userId = '"+c_user+"' AND connectionId ='" +u_name+ "' AND status ='Accept'");
-        try{
-            if(esql.executeQuery(query)>0){
-                connection=true;
-                String uName = u_name.trim();
-                query=String.format("SELECT name,dateOfBirth FROM usr WHERE userId='"+uName+"'");
-                try {
-                    result = esql.executeQueryAndReturnResult(query);
-                    System.out.println("Name : " +result.get(0).get(0)+"");
-                    System.out.println("Date Of Birth :" +result.get(0).get(1)+"\n");
-                }catch(Exception e){
-                    System.err.println(e.getMessage());
-                }
-            }
-            else{
-                System.out.println("Userid:"+u_name+"");
-            }
-        }catch(Exception e)
-        {
-            System.err.println(e.getMessage());
-        }
-        result.clear();
-        query=String.format("SELECT company,role,location,startDate,endDate FROM work_expr WHERE userId='"+u_name+"'");
-        int count=1;
+        Profile profile;
         try{
-            System.out.println("Work Experience:");
-            result=esql.executeQueryAndReturnResult(query);
-            if(result.isEmpty()){
-                System.out.println("None");
-            }
-            else
-            {
-                for(int i=0;i<result.size();i++){
-                    System.out.print("\t " +count+" . ");
-                    for(int j=0;j<result.get(i).size();j++)
-                    {
-                        System.out.print(""+result.get(i).get(j)+"");
-                    }
-                    System.out.println();
-                    count++;
-                }
-                System.out.println();
-            }
-        }catch(Exception e)
-        {
+            profile = esql.profileService().profile(c_user, u_name);
+        }catch(Exception e){
             System.err.println(e.getMessage());
+            return;
         }
-        count=1;
-        result.clear();
-        query=String.format("SELECT instituitionName,major,degree, startdate,enddate FROM educational_details WHERE userId = '"+u_name+"'");
-        try
-        {
-            System.out.println("Education: ");
-            result = esql.executeQueryAndReturnResult(query);
-            if(result.isEmpty()){
-                System.out.println("None\n");
-            }
-            else
-            {
-                for(int i=0;i<result.size();i++) {
-                    System.out.print("\t " +count+ ".");
-                    for (int j=0;j<result.get(i).size();j++){
-                        System.out.print(""+result.get(i).get(j)+"");
-                        System.out.print("");
-                    }
-                    count++;
-                    System.out.println();
-                }
-                System.out.println();
+        if(profile == null){
+            System.out.println("No User Found!");
+            return;
+        }
+        boolean self = profile.userId.equals(c_user.trim());
+        if(profile.connected || self){
+            System.out.println("Name : " + profile.name);
+            System.out.println("Date Of Birth :" + profile.dateOfBirth + "\n");
+        }
+        else{
+            System.out.println("Userid:" + profile.userId);
+        }
+        System.out.println("Degree : " + User_Connect.Degree_Badge(esql, c_user, u_name));
+        if(!self){
+            try{
+                List<String> mutual = esql.connectionService().mutual(c_user, u_name);
+                System.out.println("Mutual Connections : " + MutualConnections.summary(mutual));
+            }catch(Exception e){
+                System.err.println(e.getMessage());
             }
-        }catch(Exception e)
-        {
-            System.err.println(e.getMessage());
         }
+        System.out.println();
+        System.out.println("Work Experience:");
+        if(profile.work.isEmpty()){
+            System.out.println("None");
+        }
+        for(int i = 0; i < profile.work.size(); i++){
+            System.out.println("\t " + (i + 1) + " . " + profile.work.get(i));
+        }
+        System.out.println();
+        System.out.println("Education: ");
+        if(profile.education.isEmpty()){
+            System.out.println("None");
+        }
+        for(int i = 0; i < profile.education.size(); i++){
+            System.out.println("\t " + (i + 1) + ". " + profile.education.get(i));
+        }
+        System.out.println();
+        // only offer a request when there is nothing between the two users yet
+        boolean connReq = !self && !profile.connected && !profile.requestPending;
         boolean getChoice= true;
         while(getChoice){
             System.out.println("1.View Users Connections");
             System.out.println("2.Send Message");
-            query = ("SELECT connectionId AS userId FROM connection_usr WHERE userId='"+u_name+"'AND connectionId ='"+u_name+"' AND status='Accept' UNION ALL SELECT userId FROM connection_usr WHERE userId = '"+c_user+"' AND connectionId ='" +u_name+ "' AND status ='Accept'");
-            boolean connReq=false;
-            try{
-                if(esql.executeQuery(query)>0){
-                    System.out.println("3.Send Connection Request:");
-                    connReq=true;
-                }
-            }catch(Exception e){
-                System.err.println(e.getMessage());
+            if(connReq){
+                System.out.println("3.Send Connection Request");
             }
+            System.out.println("4.View Conversation");
             System.out.println("9.Return");
             switch(ProfNetwork.readChoice()){
-                case 1:ViewUserConnections(esql,c_user,u_name,connection);break;
+                case 1:ViewUserConnections(esql,c_user,u_name,profile.connected);break;
                 case 2: Messenger.Send_Message_Profile(esql,c_user,u_name);break;
                 case 3: if(connReq){
                     User_Connect.Connection_Request(esql,c_user,u_name);
+                    connReq = false;
                 }break;
+                case 4: Messenger.Browse_Conversation(esql,c_user,u_name);break;
                 case 9: getChoice=false;break;
                 default: System.out.println("invalid choice.Please Try Again");
             }
         }
     }
-    public static void View_Connections(ProfNetwork esql, String c_user){
-        String query = String.format("SELECT connectionId FROM connection_usr WHERE userid = '"+c_user+"' AND status = 'Accept'");
-        List<List<String>> result = new ArrayList<List<String>>();
-        try{
-            result = esql.executeQueryAndReturnResult(query);
-        } catch (Exception e){
-            System.err.println(e.getMessage());
-        }
+    public static void View_Connections(ProfNetwork esql, final String c_user){
+        // with the connection graph loaded the list comes from memory;
+        // otherwise it is streamed to the screen on every pass and the picked
+        // number is resolved with an OFFSET probe, so no rows are kept around
+        ConnectionService connections = esql.connectionService();
 
         boolean getChoice = true;
         System.out.println("\f\f\f\f\f\f\f\f\f\f\f\f\f\f");
         while(getChoice){
             System.out.println(""+c_user+"'s connection list:");
-            int count = 1;
+            int total = 0;
             int usrChoice = 0;
-            if(result.size() > 0){
-                for(int i = 0; i <result.size(); i++){
-                    System.out.println(""+count+". " + ""+result.get(i).get(0)+"");
-                    count++;
+            try{
+                List<String> listed = connections.inMemory() ? connections.connections(c_user, null) : null;
+                if(listed != null){
+                    for(int i = 0; i < listed.size(); i++){
+                        System.out.println(""+(i + 1)+". " + ""+listed.get(i)+"");
+                    }
+                    total = listed.size();
+                } else{
+                    total = connections.eachConnection(c_user, new RowHandler(){
+                        public boolean row(Row row) throws SQLException {
+                            System.out.println(""+row.number()+". " + ""+row.getId(1)+"");
+                            return true;
+                        }
+                    });
                 }
-            } else{
+            } catch (Exception e){
+                System.err.println(e.getMessage());
+            }
+            if(total == 0){
                 System.out.println("Only has you as a connection.");
             }
             System.out.println();
             System.out.println("\n1. View Profile of Connection");
             System.out.println("2. Send message to a connection");
+            System.out.println("4. Send message to all connections");
             System.out.println("---------");
             System.out.println("3. Exit\n");
+            String picked = null;
             switch(esql.readChoice()){
                 case 1: System.out.print("Please enter the number of the connection you want to view: ");
                     try{
                         usrChoice = Integer.parseInt(esql.in.readLine().trim()) - 1;
+                        picked = connections.connectionAt(c_user, usrChoice);
                     } catch (Exception e){
                         System.err.println(e.getMessage());
                     }
-                    View_User_Profile(esql, c_user, result.get(usrChoice).get(0)); break;
+                    if(picked != null){
+                        View_User_Profile(esql, c_user, picked);
+                    } else{
+                        System.out.println("Invalid choice. Please try again.");
+                    }
+                    break;
                 case 2: System.out.print("Please enter the number of the connection you want to send a message: ");
                     try{
                         usrChoice = Integer.parseInt(esql.in.readLine().trim()) - 1;
+                        picked = connections.connectionAt(c_user, usrChoice);
                     } catch (Exception e){
                         System.err.println(e.getMessage());
                     }
-                    msg.Send_Message_Profile(esql, c_user, result.get(usrChoice).get(0)); break;
+                    if(picked != null){
+                        msg.Send_Message_Profile(esql, c_user, picked);
+                    } else{
+                        System.out.println("Invalid choice. Please try again.");
+                    }
+                    break;
                 case 3: getChoice = false; break;
+                case 4: Messenger.Broadcast_Message(esql, c_user); break;
                 default: System.out.println("Invalid choice. Please try again.");
                     try{
                         String errCtch = esql.in.readLine();
@@ -556,10 +1098,9 @@ class User_Profile<getChoice> {
         }
     }
     public static void ViewUserConnections(ProfNetwork esql, String c_user, String u_name, boolean connection){
-        String query = String.format("SELECT connectionId AS userid FROM connection_usr WHERE userid = '"+u_name+"' AND connectionId <> '"+c_user+"' AND status = 'Accept' UNION ALL SELECT userid FROM connection_usr WHERE  userid <> '"+c_user+"' AND connectionId = '"+u_name+"' AND status = 'Accept'");
-        List<List<String>> result = new ArrayList<List<String>>();
+        List<String> result = new ArrayList<String>();
         try{
-            result = esql.executeQueryAndReturnResult(query);
+            result = esql.connectionService().connections(u_name, c_user);
         } catch (Exception e){
             System.err.println(e.getMessage());
         }
@@ -572,7 +1113,7 @@ class User_Profile<getChoice> {
             int usrChoice = 0;
             if(result.size() > 0){
                 for(int i = 0; i < result.size(); i++){
-                    System.out.println(""+count+". " + ""+result.get(i).get(0)+"");
+                    System.out.println(""+count+". " + ""+result.get(i)+"");
                     count++;
                 }
             } else{
@@ -590,14 +1131,14 @@ class User_Profile<getChoice> {
                     } catch (Exception e){
                         System.err.println(e.getMessage());
                     }
-                    View_User_Profile(esql, c_user, result.get(usrChoice).get(0)); break;
+                    View_User_Profile(esql, c_user, result.get(usrChoice)); break;
                 case 2: System.out.print("Please enter the number of the connection you want to send a message: ");
                     try{
                         usrChoice = Integer.parseInt(ProfNetwork.in.readLine().trim()) - 1;
                     } catch (Exception e){
                         System.err.println(e.getMessage());
                     }
-                    Messenger.Send_Message_Profile(esql, c_user, result.get(usrChoice).get(0)); break;
+                    Messenger.Send_Message_Profile(esql, c_user, result.get(usrChoice)); break;
                 case 9: getChoice = false; break;
                 default: System.out.println("Invalid choice. Please try again.");
                     try{
@@ -609,7 +1150,6 @@ class User_Profile<getChoice> {
     }
 }
 class User_Connect{
-
     public static User_Profile prof = new User_Profile();
     public static Messenger msg = new Messenger();
     public static void ConnectMenu(ProfNetwork esql, String c_user){
@@ -618,24 +1158,59 @@ class User_Connect{
             System.out.println("\nConnection Options");
             System.out.println("1. View Connections of the User");
             System.out.println("2. Accept or Decline Connection Requests");
+            System.out.println("3. People You May Know");
             System.out.println("---------");
             System.out.println("9.Exit\n");
 
             switch(ProfNetwork.readChoice()){
                 case 1: user_connections(esql, c_user); break;
                 case 2: View_Connection_Request(esql, c_user); break;
+                case 3: People_You_May_Know(esql, c_user); break;
                 //case 3: NonProfileRequest(esql, c_user); break;
                 case 9: getChoice = false; break;
                 default: System.out.println("Invalid");
             }
         }
     }
+    public static void People_You_May_Know(ProfNetwork esql, String c_user){
+        List<Recommendation> result;
+        try{
+            result = esql.connectionService().suggestions(c_user, Recommender.TOP_K);
+        } catch (Exception e){
+            System.err.println(e.getMessage());
+            return;
+        }
+        if(result.isEmpty()){
+            System.out.println("No suggestions yet. Connect with more people first.\n");
+            return;
+        }
+        boolean getChoice = true;
+        while(getChoice){
+            System.out.println("\nPeople You May Know:");
+            for(int i = 0; i < result.size(); i++){
+                System.out.println(""+(i + 1)+". " + result.get(i));
+            }
+            System.out.println("1. View Profile");
+            System.out.println("---------");
+            System.out.println("9. Exit\n");
+            switch(ProfNetwork.readChoice()){
+                case 1: System.out.print("Please Enter The Suggestion Number :");
+                    try{
+                        int usrChoice = Integer.parseInt(ProfNetwork.in.readLine().trim()) - 1;
+                        User_Profile.View_User_Profile(esql, c_user, result.get(usrChoice).userId);
+                    } catch (Exception e){
+                        System.out.println("Invalid choice. Please try again.");
+                    }
+                    break;
+                case 9: getChoice = false; break;
+                default: System.out.println("Invalid!.");
+            }
+        }
+    }
     public static void user_connections(ProfNetwork esql, String c_user){
-        List<List<String>> result = new ArrayList<List<String>>();
+        List<String> result = new ArrayList<String>();
         try{
-            String query = String.format("SELECT connectionId AS userid FROM connection_usr WHERE userID = '%s' AND status = '%s' UNION ALL SELECT userid FROM connection_usr WHERE connectionId = '%s' AND status= '%s'",
-                    c_user, "Accept", c_user, "Accept");
-            result = esql.executeQueryAndReturnResult(query);
+            result = esql.connectionService().connections(c_user, null);
             if(result.isEmpty()){
                 System.out.println("There are no connections.Please send new connection requests.\n");
             }
@@ -645,7 +1220,7 @@ class User_Connect{
                     System.out.println("\nConnections of the User: ");
                     int count = 1;
                     for(int i = 0; i < result.size(); i++){
-                        System.out.println(""+count+". " + ""+result.get(i).get(0)+"");
+                        System.out.println(""+count+". " + ""+result.get(i)+"");
                         count++;
                     }
                     System.out.println("1. View Profile of the connection");
@@ -658,12 +1233,12 @@ class User_Connect{
                         case 1: System.out.print("Please Enter The connection Number :");
                             usrChoice = Integer.parseInt(ProfNetwork.in.readLine().trim()) - 1;
                             System.out.println();
-                            User_Profile.View_User_Profile(esql, c_user, result.get(usrChoice).get(0));
+                            User_Profile.View_User_Profile(esql, c_user, result.get(usrChoice));
                             break;
                         case 2: System.out.println("Send Message to a Connection: ");
                             usrChoice = Integer.parseInt(ProfNetwork.in.readLine().trim()) -1;
                             System.out.println();
-                            Messenger.Send_Message_Profile(esql, c_user, result.get(usrChoice).get(0));
+                            Messenger.Send_Message_Profile(esql, c_user, result.get(usrChoice));
                             break;
                         case 9: getChoice = false; break;
                         default: System.out.println("Invalid!.");
@@ -678,10 +1253,10 @@ class User_Connect{
 
     }
     public static void View_Connection_Request(ProfNetwork esql, String c_user){
-        List<List<String>> result = new ArrayList<List<String>>();
+        ConnectionService connections = esql.connectionService();
+        List<String> result = new ArrayList<String>();
         try{
-            String query = String.format("SELECT userid FROM connection_usr WHERE connectionId = '"+c_user+"' AND status = 'Request'");
-            result = esql.executeQueryAndReturnResult(query);
+            result = connections.pendingRequests(c_user);
             if(result.isEmpty()){
                 System.out.println("Empty connection Request pool.");
             } else{
@@ -690,7 +1265,7 @@ class User_Connect{
                     int count = 1;
                     System.out.println("Connection Requests: ");
                     for(int i = 0; i < result.size(); i++){
-                        System.out.println(""+count+". " + ""+result.get(i).get(0)+"");
+                        System.out.println(""+count+". " + ""+result.get(i)+"");
                         count++;
                     }
                     System.out.println("\n1.Accept Connection Request");
@@ -703,9 +1278,8 @@ class User_Connect{
                         case 1: System.out.print("Please enter the request to accept: ");
                             try{
                                 reqChoice = Integer.parseInt(ProfNetwork.in.readLine().trim()) - 1;
-                                query = String.format("UPDATE connection_usr SET status = 'Accept' WHERE userid = '"+result.get(reqChoice).get(0)+"' AND connectionId = '"+c_user+"'");
                                 try{
-                                    esql.executeUpdate(query);
+                                    connections.accept(result.get(reqChoice), c_user);
                                     result.remove(reqChoice);
                                 } catch (Exception e){
                                     System.err.println(e.getMessage());
@@ -717,9 +1291,8 @@ class User_Connect{
                         case 2: System.out.print("Please enterthe request to reject: ");
                             try{
                                 reqChoice = Integer.parseInt(ProfNetwork.in.readLine().trim()) - 1;
-                                query = String.format("UPDATE connection_usr SET status = 'Reject' WHERE userid = '"+result.get(reqChoice).get(0)+"' AND connectionId = '"+c_user+"'");
                                 try{
-                                    esql.executeUpdate(query);
+                                    connections.reject(result.get(reqChoice), c_user);
                                     result.remove(reqChoice);
                                 } catch (Exception e){
                                     System.err.println(e.getMessage());
@@ -739,45 +1312,44 @@ class User_Connect{
         }
     }
     public static void Connection_Request(ProfNetwork esql, String c_user, String userReq){
-        if(Connection_Depth_Check(esql, c_user, userReq)){
-            System.out.println("Request being sent to: '"+userReq+"'");
-            String query = String.format("INSERT INTO connection_usr (userId, connectionId, status) " + "VALUES('"+c_user+"', '"+userReq+"', 'Request')");
-            try{
-                esql.executeUpdate(query);
-            } catch (Exception e){
-                System.err.println(e.getMessage());
+        try{
+            if(esql.connectionService().request(c_user, userReq)){
+                System.out.println("Request sent to: '"+userReq+"'");
+            } else{
+                System.out.println("Cant request the user.");
             }
-        } else{
-            System.out.println("Cant request the user.");
+        } catch (Exception e){
+            System.err.println(e.getMessage());
         }
     }
-    public static boolean Connection_Depth_Check(ProfNetwork esql, String c_user, String userReq){
-        boolean status = false;
-        List<List<String>> result = new ArrayList<List<String>>();
-        String query = String.format("SELECT count(*) FROM connection_usr WHERE userid = '%s' AND status = 'Accept' OR connectionId = '%s' AND status = 'Accept'", c_user, c_user);
+    /*
+     * Badge text for how far u_name is from c_user in the network.
+     */
+    static String Degree_Badge(ProfNetwork esql, String c_user, String u_name){
         try{
-            result = esql.executeQueryAndReturnResult(query);
-            int count = Integer.parseInt(result.get(0).get(0).trim());
-            if(count > 4){
-                try{
-                    query = String.format("SELECT * FROM %s WHERE userid = '%s'", "\"" + c_user + "\"", userReq);
-                    int size = esql.executeQuery(query);
-                    status = size > 0;
-                } catch (Exception e){
-                    System.err.println(e.getMessage());
-                    status = false;
-                }
-            } else {
-                status = true;
+            switch(esql.connectionService().degree(c_user, u_name, ConnectionService.REQUEST_DEPTH)){
+                case 0: return "You";
+                case 1: return "1st degree connection";
+                case 2: return "2nd degree connection";
+                case 3: return "3rd degree connection";
+                case -1: return "Outside your network";
+                default: return "Within your network";
             }
         } catch (Exception e){
-            status = false;
             System.err.println(e.getMessage());
+            return "Unknown";
         }
-        return status;
     }
     public static void Search_User(ProfNetwork esql, String c_user){
-        List<List<String> > result = new ArrayList<List<String> >();
+        System.out.println("1. Search by Full Name");
+        System.out.println("2. Quick Search (name, userId or email)");
+        System.out.println("3. Search by Work and Education");
+        switch(ProfNetwork.readChoice()){
+            case 2: Quick_Search(esql, c_user); return;
+            case 3: Profile_Search(esql, c_user); return;
+            default: break;
+        }
+        List<String> result = new ArrayList<String>();
         try{
             System.out.println("Please Enter User's First Name: ");
             String First_Name = ProfNetwork.in.readLine();
@@ -785,16 +1357,15 @@ class User_Connect{
                 System.out.println("Please Enter User's Last Name:  ");
                 String Last_Name = ProfNetwork.in.readLine();
                 String Full_Name = ""+First_Name+" "+Last_Name;
-                String query = String.format("SELECT userId FROM usr WHERE name = '"+Full_Name+"'");
                 try{
-                    result = esql.executeQueryAndReturnResult(query);
+                    result = esql.profileService().findByName(Full_Name);
                     if(result.isEmpty()){
                         System.out.println("No User Found!");
                     }
                     else{
                         int c = 1;
                         for(int i=0;i<result.size();i++){
-                            System.out.println("\n\t"+c+". "+result.get(i).get(0)+"");
+                            System.out.println("\n\t"+c+". "+result.get(i)+"");
                             c++;
                         }
                     }
@@ -812,7 +1383,7 @@ class User_Connect{
                         System.out.println("View User Profile Number:");
                         try{
                             userCh=Integer.parseInt(ProfNetwork.in.readLine().trim())-1;
-                            User_Profile.View_User_Profile(esql,c_user,result.get(userCh).get(0));
+                            User_Profile.View_User_Profile(esql,c_user,result.get(userCh));
                         }catch(Exception e){
                         }break;
                     case 3: Search_User(esql,c_user);break;
@@ -828,94 +1399,296 @@ class User_Connect{
             System.out.println(e.getMessage());
         }
     }
+    // results per page in Quick_Search
+    private static final int SEARCH_PAGE_SIZE = (int) ProfNetwork.setting("search.pageSize", 10);
+
+    public static void Profile_Search(ProfNetwork esql, String c_user){
+        System.out.println("Search terms are field:word pairs, fields being company, role, location,");
+        System.out.println("school, major and degree; a bare word matches any field.  Terms are");
+        System.out.println("ANDed; separate alternatives with OR, e.g. company:google role:engineer OR school:ucr");
+        System.out.print("Search for: ");
+        List<String> result;
+        try{
+            String query = ProfNetwork.in.readLine();
+            if(query == null || query.trim().isEmpty()){
+                return;
+            }
+            long start = System.nanoTime();
+            result = esql.profileService().searchProfiles(query);
+            System.out.printf("%d user(s) found in %.2fms%n", result.size(), (System.nanoTime() - start) / 1e6);
+        }catch(Exception e){
+            System.err.println(e.getMessage());
+            return;
+        }
+        if(result.isEmpty()){
+            return;
+        }
+        int shown = Math.min(result.size(), SEARCH_PAGE_SIZE * 5);
+        for(int i = 0; i < shown; i++){
+            System.out.println("\t" + (i + 1) + ". " + result.get(i));
+        }
+        if(shown < result.size()){
+            System.out.println("\t... and " + (result.size() - shown) + " more; narrow the search to see them.");
+        }
+        System.out.println("1. View the Profile of the User");
+        System.out.println("9. Return");
+        if(ProfNetwork.readChoice() == 1){
+            System.out.println("View User Profile Number:");
+            try{
+                int userCh = Integer.parseInt(ProfNetwork.in.readLine().trim()) - 1;
+                User_Profile.View_User_Profile(esql, c_user, result.get(userCh));
+            }catch(Exception e){
+                System.out.println("Invalid choice. Please try again.");
+            }
+        }
+    }
+    public static void Quick_Search(ProfNetwork esql, String c_user){
+        String term;
+        try{
+            System.out.print("Search for: ");
+            term = ProfNetwork.in.readLine();
+        }catch(Exception e){
+            System.out.println(e.getMessage());
+            return;
+        }
+        if(term == null || term.trim().isEmpty()){
+            System.out.println("Please enter part of a name, userId or email.");
+            return;
+        }
+        int page = 0;
+        while(true){
+            List<UserSummary> result;
+            try{
+                // one extra row tells us whether there is a next page
+                result = esql.profileService().search(term, SEARCH_PAGE_SIZE + 1, page * SEARCH_PAGE_SIZE);
+            }catch(Exception e){
+                System.err.println(e.getMessage());
+                return;
+            }
+            if(result.isEmpty() && page == 0){
+                System.out.println("No User Found!");
+                return;
+            }
+            boolean more = result.size() > SEARCH_PAGE_SIZE;
+            if(more){
+                result = result.subList(0, SEARCH_PAGE_SIZE);
+            }
+            System.out.println("\nPage " + (page + 1));
+            for(int i = 0; i < result.size(); i++){
+                System.out.println("\t" + (i + 1) + ". " + result.get(i));
+            }
+            System.out.println("<number>. View Profile  " + (more ? "n. Next page  " : "") + (page > 0 ? "p. Previous page  " : "") + "q. Back");
+            String choice;
+            try{
+                choice = ProfNetwork.in.readLine();
+            }catch(Exception e){
+                return;
+            }
+            choice = choice == null ? "q" : choice.trim().toLowerCase();
+            if(choice.equals("n") && more){
+                page++;
+            }else if(choice.equals("p") && page > 0){
+                page--;
+            }else if(choice.equals("q")){
+                return;
+            }else{
+                try{
+                    User_Profile.View_User_Profile(esql, c_user, result.get(Integer.parseInt(choice) - 1).userId);
+                }catch(Exception e){
+                    System.out.println("Invalid choice. Please try again.");
+                }
+            }
+        }
+    }
 }
 class Messenger{
+    // rows per page when browsing a mailbox
+    private static final int PAGE_SIZE = (int) ProfNetwork.setting("pageSize", 20);
+
+    /*
+     * " (3 unread)" for menu lines, or nothing when there is no unread mail.
+     */
+    static String Unread_Badge(ProfNetwork esql, String c_user){
+        try{
+            long unread = esql.messageService().unreadCount(c_user);
+            return unread > 0 ? " (" + unread + " unread)" : "";
+        }catch(Exception e){
+            System.err.println(e.getMessage());
+            return "";
+        }
+    }
+
+    /*
+     * Tells c_user about queued messages that could not be delivered since
+     * the last time they were told.
+     */
+    static void Report_Failures(ProfNetwork esql, String c_user){
+        for(MessageDispatcher.Outgoing failed : esql.messageService().failures(c_user)){
+            System.out.println("Message to " + failed.receiverId.trim() + " could not be delivered: " + failed.error());
+        }
+    }
+
     public static void Message_Options(ProfNetwork esql, String c_user){
         boolean menuOn = true;
         System.out.println("\f\f\f\f\f\f\f\f\f\f\f\f\f\f");
         while(menuOn){
+            Report_Failures(esql, c_user);
             System.out.println("\n Message Options");
             System.out.println("1. Read Message");
             System.out.println("2. Send Message");
+            System.out.println("4. Conversations");
             System.out.println("3:Exit\n");
             switch(ProfNetwork.readChoice()){
                 case 1: Read_Message(esql, c_user);
                     break;
                 case 2: Send_Message(esql, c_user);
                     break;
+                case 4: View_Conversation(esql, c_user);
+                    break;
                 case 3: menuOn = false; break;
                 default: System.out.println("\nERROR\n");
             }
         }
     }
+    public static void View_Conversation(ProfNetwork esql, String c_user){
+        System.out.print("Please enter the userId of the other person: ");
+        try{
+            String other = ProfNetwork.in.readLine();
+            if(other != null && !other.trim().isEmpty()){
+                Browse_Conversation(esql, c_user, other.trim());
+            }
+        }catch(Exception e){
+            System.err.println(e.getMessage());
+        }
+    }
+    /*
+     * Shows the exchange between two users oldest-to-newest, a window at a
+     * time, starting from the latest messages and paging back on request.
+     */
+    static void Browse_Conversation(ProfNetwork esql, String c_user, String other){
+        // last (oldest) message of each window shown so far; null is the latest
+        List<Message> starts = new ArrayList<Message>();
+        starts.add(null);
+        while(true){
+            Message start = starts.get(starts.size() - 1);
+            MessagePage page;
+            try{
+                page = esql.messageService().conversation(c_user, other, start == null ? null : start.sendTime, start == null ? 0 : start.msgId, PAGE_SIZE);
+            }catch(Exception e){
+                System.err.println(e.getMessage());
+                return;
+            }
+            if(page.messages.isEmpty() && starts.size() == 1){
+                System.out.println("No messages with " + other + " yet.");
+                return;
+            }
+            System.out.println("\nConversation with " + other);
+            if(!page.more){
+                System.out.println("-- start of conversation --");
+            }
+            // fetched newest first; shown in the order they were sent
+            for(int i = page.messages.size() - 1; i >= 0; i--){
+                Message m = page.messages.get(i);
+                System.out.println("[" + m.sendTime + "] " + m.senderId + " (#" + m.msgId + ", " + m.status + "):\n    " + m.contents);
+            }
+            System.out.println((page.more ? "o. Older messages  " : "") + (starts.size() > 1 ? "n. Newer messages  " : "") + "q. Back");
+            String choice;
+            try{
+                choice = ProfNetwork.in.readLine();
+            }catch(Exception e){
+                return;
+            }
+            choice = choice == null ? "q" : choice.trim().toLowerCase();
+            if(choice.equals("o") && page.more){
+                starts.add(page.last());
+            }else if(choice.equals("n") && starts.size() > 1){
+                starts.remove(starts.size() - 1);
+            }else if(choice.equals("q")){
+                return;
+            }else{
+                System.out.println("Invalid choice. Please try again.");
+            }
+        }
+    }
     public static void Read_Message(ProfNetwork esql, String c_user){
         boolean getChoice = true;
         System.out.println("\f\f\f\f\f\f\f\f\f\f\f\f\f\f\f\f\f");
         while(getChoice){
             System.out.println("\nRead Messages");
             System.out.println("---------");
-            System.out.println("1. View any new messages");
+            System.out.println("1. View any new messages" + Unread_Badge(esql, c_user));
             System.out.println("2. Read a  Message");
             System.out.println("3. View all received messages");
-            System.out.println("4. Delete a received message");
+            System.out.println("4. Delete received messages");
+            System.out.println("6. Mark all as read");
             System.out.println("---------");
             System.out.println("5.Exit\n");
             switch(ProfNetwork.readChoice()){
-                case 1: try{
-                    String query = String.format("SELECT msgId, senderId FROM message WHERE receiverId = '%s' AND status = '%s' AND (deleteStatus = '0' OR deleteStatus = '1')", c_user, "Delivered");
-
-                    int result = esql.executeQueryAndPrintResult(query);
-                    if(result < 1){
-                        System.out.println("There are no unread messages.");
-                    }
-                }catch(Exception e){
-                    System.err.println(e.getMessage());
-                }
+                case 1: Browse_Messages(esql, c_user, MessageService.Box.NEW);
                     break;
                 case 2: ReadMessage(esql, c_user);
                     break;
-                case 3: try{
-                    String query = String.format("SELECT msgId,senderId  FROM message WHERE receiverId = '%s' AND (status = '%s' OR status = '%s') AND (deleteStatus = '0' OR deleteStatus ='1')", c_user, "Delivered", "Read");
-                    int result = esql.executeQueryAndPrintResult(query);
-                    if(result < 1){
-                        System.out.println("There are no messages in your inbox.");
-                    }
-                }catch(Exception e){
-                    System.err.println(e.getMessage());
-                }
+                case 3: Browse_Messages(esql, c_user, MessageService.Box.INBOX);
                     break;
                 case 4: Delete_Message(esql, c_user, "read");
                     break;
                 case 5: getChoice = false;
                     break;
+                case 6: Mark_All_Read(esql, c_user);
+                    break;
                 default: System.out.println("\nInvalid!.\n");
             }
         }
     }
     public static void ReadMessage(ProfNetwork esql, String c_user){
-        System.out.print("\t\nPlease enter the message id you would like to read: ");
+        System.out.print("\t\nPlease enter the message id(s) you would like to read, separated by commas: ");
+        int[] ids;
         try{
-            String input = ProfNetwork.in.readLine();
-            int msgId= Integer.parseInt(input.trim());
-            try{
-                System.out.println();
-                String query = String.format("SELECT contents FROM message WHERE msgId = '%s' AND receiverId = '%s' AND (deleteStatus = '0' OR deleteStatus = '1')", msgId, c_user);
-                int result = esql.executeQueryAndPrintResult(query);
-                if(result < 1){
-                    System.out.println("No message found with that id. Please try again.");
-                }
-                else{
-                    try{
-                        query = String.format("UPDATE message SET status = '%s' WHERE msgId = '%s'", "Read", msgId);
-                        esql.executeUpdate(query);
-                    }catch (Exception e){
-                    }
-                }
-            }catch (Exception e){
-            }
+            ids = parseIds(ProfNetwork.in.readLine());
         }catch (Exception e){
             System.out.println("Invalid input. The message id is an integer. Please try again");
+            return;
+        }
+        try{
+            System.out.println();
+            List<Message> shown = esql.messageService().read(c_user, ids);
+            for(Message m : shown){
+                System.out.println("[" + m.msgId + "] from " + m.senderId + ":");
+                System.out.println(m.contents + "\n");
+            }
+            if(shown.isEmpty()){
+                System.out.println("No message found with that id. Please try again.");
+            }
+        }catch (Exception e){
+            System.err.println(e.getMessage());
+        }
+    }
+    public static void Mark_All_Read(ProfNetwork esql, String c_user){
+        try{
+            int marked = esql.messageService().markRead(c_user, null);
+            System.out.println(marked + " message(s) marked as read.");
+        }catch (Exception e){
+            System.err.println(e.getMessage());
+        }
+    }
+    /*
+     * "8, 3,8" -> {3, 8}, sorted and without repeats; throws
+     * NumberFormatException on anything else.
+     */
+    static int[] parseIds(String input){
+        String[] parts = input.trim().split("[\\s,]+");
+        int[] ids = new int[parts.length];
+        for(int i = 0; i < parts.length; i++){
+            ids[i] = Integer.parseInt(parts[i]);
+        }
+        Arrays.sort(ids);
+        int n = 0;
+        for(int i = 0; i < ids.length; i++){
+            if(n == 0 || ids[n - 1] != ids[i]){
+                ids[n++] = ids[i];
+            }
         }
+        return Arrays.copyOf(ids, n);
     }
     public static void Send_Message(ProfNetwork esql, String c_user){
         boolean getChoice = true;
@@ -926,7 +1699,8 @@ class Messenger{
             System.out.println("1. Send a Message");
             System.out.println("2. Sent Messages");
             System.out.println("3. View a Sent Message");
-            System.out.println("4. Delete Sent Message");
+            System.out.println("4. Delete Sent Messages");
+            System.out.println("5. Message All Connections");
             System.out.println("---------");
             System.out.println("9. Exit\n");
 
@@ -939,6 +1713,8 @@ class Messenger{
                     break;
                 case 4: Delete_Message(esql, c_user, "send");
                     break;
+                case 5: Broadcast_Message(esql, c_user);
+                    break;
                 case 9: getChoice = false;
                     break;
                 default: System.out.println("Invalid Choice. Please try again.");
@@ -952,15 +1728,10 @@ class Messenger{
             System.out.print("\nPlease enter the message you want to send: ");
             String contents = ProfNetwork.in.readLine();
             try{
-                String query2 = String.format("SELECT COUNT(*) FROM MESSAGE");
-                int count = esql.executeQuery(query2);
-                System.out.println(""+count);
-                String query = String.format("INSERT INTO message (senderId, receiverId, contents, deleteStatus, status) " + "VALUES('"+c_user+"', '"+receiveid+"', '"+contents+"', 0, 'Delivered')");
-                esql.executeUpdate(query);
+                System.out.println(sentLine(esql.messageService().send(c_user, receiveid, contents)));
             } catch (Exception e){
                 System.err.println(e.getMessage());
             }
-            System.out.println("Message has been Inserted!");
         } catch (Exception e){
             System.err.println(e.getMessage());
         }
@@ -972,10 +1743,7 @@ class Messenger{
             System.out.print("Please enter the message you want to send: ");
             String contents = ProfNetwork.in.readLine();
             try{
-                String query2 = String.format("SELECT COUNT(*) FROM MESSAGE");
-                int count = esql.executeQuery(query2);
-                String query = String.format("INSERT INTO message (msgId,senderId, receiverId, contents, deleteStatus, status) " + "VALUES('"+count+"','"+c_user+"', '"+receiverId+"', '"+contents+"', 0, 'Delivered')");
-                esql.executeUpdate(query);
+                System.out.println(sentLine(esql.messageService().send(c_user, receiverId, contents)));
             } catch (Exception e){
                 System.err.println(e.getMessage());
             }
@@ -983,17 +1751,95 @@ class Messenger{
             System.err.println(e.getMessage());
         }
     }
-    public static void ListSentMessages(ProfNetwork esql, String c_user){
+    /*
+     * Sends the same message to every accepted connection of c_user in a
+     * single batch.
+     */
+    public static void Broadcast_Message(ProfNetwork esql, final String c_user){
         try{
-            String query = String.format("SELECT msgId, receiverId, status FROM message WHERE senderid = '%s' AND (deleteStatus = '0' OR deleteStatus = '2')", c_user);
-            int result = esql.executeQueryAndPrintResult(query);
-            if(result < 1){
-                System.out.println("You have no sent messages.");
+            System.out.print("Please enter the message you want to send to all your connections: ");
+            final String contents = ProfNetwork.in.readLine();
+            int sent = esql.messageService().broadcast(c_user, contents);
+            if(sent == 0){
+                System.out.println("You have no connections to message.");
+                return;
             }
+            System.out.println("Message sent to " + sent + " connections.");
         } catch (Exception e){
             System.err.println(e.getMessage());
         }
     }
+    static String sentLine(Message sent){
+        if(sent.msgId == 0){
+            return "Message queued for delivery.";
+        }
+        return "Message has been Inserted! (id " + sent.msgId + ")";
+    }
+    public static void ListSentMessages(ProfNetwork esql, String c_user){
+        Browse_Messages(esql, c_user, MessageService.Box.SENT);
+    }
+    /*
+     * Pages through one mailbox newest first, PAGE_SIZE rows at a time,
+     * remembering where each page started so it can step back again.
+     */
+    static void Browse_Messages(ProfNetwork esql, String c_user, MessageService.Box box){
+        String header;
+        String empty;
+        if(box == MessageService.Box.SENT){
+            header = "msgId\treceiverId\tsendTime\tstatus";
+            empty = "You have no sent messages.";
+        } else if(box == MessageService.Box.NEW){
+            header = "msgId\tsenderId\tsendTime\tstatus";
+            empty = "There are no unread messages.";
+        } else{
+            header = "msgId\tsenderId\tsendTime\tstatus";
+            empty = "There are no messages in your inbox.";
+        }
+
+        // last row of each page shown so far; null is the top
+        List<Message> starts = new ArrayList<Message>();
+        starts.add(null);
+        while(true){
+            Message start = starts.get(starts.size() - 1);
+            MessagePage page;
+            try{
+                page = esql.messageService().mailbox(c_user, box, start == null ? null : start.sendTime, start == null ? 0 : start.msgId, PAGE_SIZE);
+            } catch (Exception e){
+                System.err.println(e.getMessage());
+                return;
+            }
+            if(page.messages.isEmpty() && starts.size() == 1){
+                System.out.println(empty);
+                return;
+            }
+            System.out.println("\nPage " + starts.size());
+            System.out.println(header);
+            for(Message m : page.messages){
+                String other = box == MessageService.Box.SENT ? m.receiverId : m.senderId;
+                System.out.println(m.msgId + "\t" + other + "\t" + m.sendTime + "\t" + m.status);
+            }
+            if(!page.more){
+                System.out.println("-- end of messages --");
+            }
+            System.out.println((page.more ? "n. Next page  " : "") + (starts.size() > 1 ? "p. Previous page  " : "") + "q. Back");
+            String choice;
+            try{
+                choice = ProfNetwork.in.readLine();
+            } catch (Exception e){
+                return;
+            }
+            choice = choice == null ? "q" : choice.trim().toLowerCase();
+            if(choice.equals("n") && page.more){
+                starts.add(page.last());
+            } else if(choice.equals("p") && starts.size() > 1){
+                starts.remove(starts.size() - 1);
+            } else if(choice.equals("q")){
+                return;
+            } else{
+                System.out.println("Invalid choice. Please try again.");
+            }
+        }
+    }
   /*  public static void ViewRecieveMessage(ProfNetwork esql, String c_user){
         try{
             String query = String.format("SELECT msgid, senderid, contents, status FROM message WHERE receiverid = '%s' AND (deleteStatus = '0' OR deleteStatus = '1')", c_user);
@@ -1015,11 +1861,11 @@ class Messenger{
             try{
                 int msgId = Integer.parseInt(input.trim());
                 try{
-                    System.out.print("\nMessage: ");
-                    String query = String.format("SELECT contents FROM message WHERE msgId = '%s' AND senderId = '%s'", msgId, c_user);
-                    int result = esql.executeQueryAndPrintResult(query);
-                    if(result < 1){
+                    Message sent = esql.messageService().sent(c_user, msgId);
+                    if(sent == null){
                         System.out.println("Message doesn't Exist");
+                    } else{
+                        System.out.println("\nMessage to " + sent.receiverId + " (" + sent.status + "): " + sent.contents);
                     }
                 } catch (Exception e){
                     System.err.println(e.getMessage());
@@ -1032,50 +1878,3898 @@ class Messenger{
         }
     }
     public static void Delete_Message(ProfNetwork esql, String c_user, String type){
-        System.out.print("Please enter the message id that you would like to delete: ");
+        System.out.print("Please enter the message id(s) that you would like to delete, separated by commas: ");
+        int[] ids;
         try{
-            String input = ProfNetwork.in.readLine();
-            int msgId = Integer.parseInt(input.trim());
-            try{
-                if(type.equals("send")){
-                    String query = String.format("SELECT deleteStatus FROM message WHERE msgId = '%s' AND senderId = '%s'", msgId, c_user);
-                    List<List<String>> result = new ArrayList<List<String>>();
-                    result = esql.executeQueryAndReturnResult(query);
-                    try{
-                        if(result.get(0).get(0).equals("0")){
-                            query = String.format("UPDATE message set deleteStatus = '1' WHERE msgId = '%s'", msgId);
-                            esql.executeUpdate(query);
-                        } else{
-                            query = String.format("DELETE FROM message WHERE msgId = '%s'", msgId);
-                            esql.executeUpdate(query);
-                        }
-                    } catch (Exception e){
-                        System.err.println(e.getMessage());
-                    }
-                } else {
-                    String query = String.format("SELECT deleteStatus FROM message WHERE msgId = '%s' AND receiverId = '%s'", msgId, c_user);
-                    List<List<String>> result = new ArrayList<List<String>>();
-                    result = esql.executeQueryAndReturnResult(query);
-                    try{
-                        if(result.get(0).get(0).equals("0")){
-
-                            query = String.format("UPDATE message SET deleteStatus = '2' WHERE msgId = '%s'", msgId);
-                            esql.executeUpdate(query);
-                        } else{
-                            query = String.format("DELETE FROM message WHERE msgId = '%s'", msgId);
-                            esql.executeUpdate(query);
-                        }
-                    } catch (Exception e){
-                        System.err.println(e.getMessage());
-                    }
-                }
-            } catch (Exception e){
-                System.err.println(e.getMessage());
-            }
+            ids = parseIds(ProfNetwork.in.readLine());
         } catch (Exception e){
             System.out.println("Please enter a valid message id.");
+            return;
+        }
+        try{
+            int deleted = esql.messageService().delete(c_user, ids, type.equals("send"));
+            if(deleted < ids.length){
+                System.out.println((ids.length - deleted) + " message id(s) were not found.");
+            }
+            System.out.println(deleted + " message(s) deleted.");
+        } catch (Exception e){
+            System.err.println(e.getMessage());
         }
     }
 }
 
+/*
+ * A physical connection checked out of the ConnectionPool together with
+ * the bookkeeping the pool needs to decide when to validate or retire it.
+ */
+class PooledConnection {
+    final Connection connection;
+    final long createdAt;
+    long lastUsed;
+
+    private final AtomicLong cacheHits;
+    private final AtomicLong cacheMisses;
+
+    // prepared statements keyed by SQL text, least recently used first.
+    // Only the borrowing thread touches it, so it needs no locking.
+    private final LinkedHashMap<String, PreparedStatement> statements;
+
+    PooledConnection(Connection connection, final int cacheSize, AtomicLong cacheHits, AtomicLong cacheMisses){
+        this.connection = connection;
+        this.createdAt = System.currentTimeMillis();
+        this.lastUsed = this.createdAt;
+        this.cacheHits = cacheHits;
+        this.cacheMisses = cacheMisses;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true){
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest){
+                if (size() <= cacheSize)
+                    return false;
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached statement for this SQL text with its parameters
+     * cleared, preparing and caching it on the first use.
+     */
+    PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement stmt = statements.get(sql);
+        if (stmt != null){
+            cacheHits.incrementAndGet();
+            stmt.clearParameters();
+            return stmt;
+        }
+        cacheMisses.incrementAndGet();
+        stmt = connection.prepareStatement(sql);
+        statements.put(sql, stmt);
+        return stmt;
+    }
+
+    void touch(){
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    void close(){
+        for (PreparedStatement stmt : statements.values()){
+            closeQuietly(stmt);
+        }
+        statements.clear();
+        try{
+            this.connection.close();
+        }catch (SQLException e){
+            // ignored.
+        }
+    }
+
+    private static void closeQuietly(Statement stmt){
+        try{
+            stmt.close();
+        }catch (SQLException e){
+            // ignored.
+        }
+    }
+}//end PooledConnection
+
+/*
+ * Bounded pool of physical connections shared by every ProfNetwork call.
+ * At most maxSize connections are open at once; callers wait up to
+ * borrowTimeoutMs for one to free up.  Idle connections are validated
+ * when borrowed, evicted after idleTimeoutMs and retired after
+ * maxLifetimeMs.  All knobs are read from -Dprofnetwork.pool.* properties.
+ */
+class ConnectionPool {
+    private final String url;
+    private final String user;
+    private final String passwd;
+
+    private final int maxSize = (int) ProfNetwork.setting("pool.maxSize", 8);
+    private final int minIdle = (int) ProfNetwork.setting("pool.minIdle", 1);
+    private final long borrowTimeoutMs = ProfNetwork.setting("pool.borrowTimeoutMs", 30000);
+    private final long idleTimeoutMs = ProfNetwork.setting("pool.idleTimeoutMs", 600000);
+    private final long maxLifetimeMs = ProfNetwork.setting("pool.maxLifetimeMs", 1800000);
+    // connections used more recently than this are handed out without a round trip
+    private final long validationIntervalMs = ProfNetwork.setting("pool.validationIntervalMs", 5000);
+    // prepared statements kept per connection
+    private final int statementCacheSize = (int) ProfNetwork.setting("pool.statementCacheSize", 64);
+
+    private final Semaphore permits;
+    // most recently returned connection first so the tail ages out
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed = false;
+
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong retired = new AtomicLong();
+    private final AtomicLong validationFailures = new AtomicLong();
+    private final AtomicLong statementHits = new AtomicLong();
+    private final AtomicLong statementMisses = new AtomicLong();
+
+    ConnectionPool(String url, String user, String passwd){
+        this.url = url;
+        this.user = user;
+        this.passwd = passwd;
+        this.permits = new Semaphore(Math.max(1, maxSize), true);
+        this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+            public Thread newThread(Runnable r){
+                Thread t = new Thread(r, "profnetwork-pool-evictor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(1000, Math.min(idleTimeoutMs, maxLifetimeMs) / 2);
+        this.evictor.scheduleWithFixedDelay(new Runnable(){
+            public void run(){
+                evict();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens minIdle connections up front (at least one) so connection
+     * problems surface immediately.
+     */
+    void warmUp() throws SQLException {
+        for (int i = 0; i < Math.max(1, minIdle) && open.get() < maxSize; i++){
+            idle.offerLast(openConnection());
+        }
+    }
+
+    /**
+     * Hands out a validated connection, waiting up to borrowTimeoutMs
+     * if every connection is in use.  Must be paired with release().
+     */
+    PooledConnection borrow() throws SQLException {
+        if (closed)
+            throw new SQLException("Connection pool is closed");
+        long start = System.nanoTime();
+        try{
+            if (!permits.tryAcquire(borrowTimeoutMs, TimeUnit.MILLISECONDS)){
+                timeouts.incrementAndGet();
+                throw new SQLException("Timed out after " + borrowTimeoutMs + "ms waiting for a database connection");
+            }
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection");
+        }
+        recordWait(System.nanoTime() - start);
+        try{
+            PooledConnection conn;
+            while ((conn = idle.pollFirst()) != null){
+                if (isUsable(conn)){
+                    conn.touch();
+                    return conn;
+                }
+                retire(conn);
+            }
+            return openConnection();
+        }catch (SQLException e){
+            permits.release();
+            throw e;
+        }catch (RuntimeException e){
+            permits.release();
+            throw e;
+        }
+    }//end borrow
 
+    /**
+     * Returns a connection to the pool.  Broken or expired connections
+     * are closed instead of being reused.
+     */
+    void release(PooledConnection conn, boolean broken){
+        try{
+            if (broken || closed || expired(conn, System.currentTimeMillis())){
+                retire(conn);
+            }else{
+                conn.touch();
+                idle.offerFirst(conn);
+            }
+        }finally{
+            permits.release();
+        }
+    }//end release
+
+    /**
+     * Tells whether a failed statement left its connection unusable: SQL
+     * state class 08 is a connection exception, anything else (syntax
+     * errors, constraint violations) leaves the connection healthy.
+     */
+    static boolean isBroken(PooledConnection conn, SQLException e){
+        String state = e.getSQLState();
+        if (state != null && state.startsWith("08"))
+            return true;
+        try{
+            return conn.connection.isClosed();
+        }catch (SQLException ignored){
+            return true;
+        }
+    }
+
+    /**
+     * Closes every idle connection and stops the evictor.  Connections
+     * still checked out are closed as they are released.
+     */
+    void close(){
+        closed = true;
+        evictor.shutdownNow();
+        PooledConnection conn;
+        while ((conn = idle.pollFirst()) != null){
+            retire(conn);
+        }
+    }
+
+    String stats(){
+        long n = borrows.get();
+        long hits = statementHits.get();
+        long lookups = hits + statementMisses.get();
+        return String.format("pool: open=%d idle=%d max=%d borrows=%d avgWait=%.3fms maxWait=%.3fms timeouts=%d created=%d retired=%d validationFailures=%d"
+                        + " | statements: hits=%d misses=%d hitRate=%.1f%%",
+                open.get(), idle.size(), maxSize, n,
+                n == 0 ? 0.0 : waitNanos.get() / (double) n / 1e6,
+                maxWaitNanos.get() / 1e6, timeouts.get(),
+                created.get(), retired.get(), validationFailures.get(),
+                hits, statementMisses.get(), lookups == 0 ? 0.0 : 100.0 * hits / lookups);
+    }
+
+    private PooledConnection openConnection() throws SQLException {
+        Connection conn = DriverManager.getConnection(url, user, passwd);
+        open.incrementAndGet();
+        created.incrementAndGet();
+        return new PooledConnection(conn, statementCacheSize, statementHits, statementMisses);
+    }
+
+    private void retire(PooledConnection conn){
+        conn.close();
+        open.decrementAndGet();
+        retired.incrementAndGet();
+    }
+
+    private boolean expired(PooledConnection conn, long now){
+        return maxLifetimeMs > 0 && now - conn.createdAt >= maxLifetimeMs;
+    }
+
+    private boolean isUsable(PooledConnection conn){
+        long now = System.currentTimeMillis();
+        if (expired(conn, now))
+            return false;
+        if (now - conn.lastUsed < validationIntervalMs)
+            return true;
+        try{
+            Statement stmt = conn.connection.createStatement();
+            try{
+                stmt.executeQuery("SELECT 1").close();
+            }finally{
+                stmt.close();
+            }
+            return true;
+        }catch (SQLException e){
+            validationFailures.incrementAndGet();
+            return false;
+        }
+    }
+
+    private void recordWait(long nanos){
+        borrows.incrementAndGet();
+        waitNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, nanos)){
+            // retry until we either win or someone recorded a longer wait
+        }
+    }
+
+    /*
+     * Runs on the evictor thread: drops connections past maxLifetime and
+     * idle connections past idleTimeout beyond the minIdle floor.
+     */
+    private void evict(){
+        long now = System.currentTimeMillis();
+        for (PooledConnection conn : idle){
+            boolean stale = expired(conn, now)
+                    || (idleTimeoutMs > 0 && now - conn.lastUsed >= idleTimeoutMs && idle.size() > minIdle);
+            // remove() fails if a borrower grabbed it in the meantime
+            if (stale && idle.remove(conn)){
+                retire(conn);
+            }
+        }
+    }
+}//end ConnectionPool
+
+/*
+ * Callback for ProfNetwork.forEachRow, invoked once per row.
+ */
+interface RowHandler {
+    /**
+     * @param row the current row; only valid for the duration of the call
+     * @return false to stop reading further rows
+     */
+    boolean row(Row row) throws SQLException;
+}//end RowHandler
+
+/*
+ * Read-only view of the current row of a streamed result set with typed,
+ * 1-based column accessors.  The same instance is reused for every row.
+ */
+class Row {
+    private final ResultSet rs;
+    private ResultSetMetaData meta;
+    private int number = 0;
+    // size of the values read so far, for QueryMetrics
+    private long bytes = 0;
+
+    Row(ResultSet rs){
+        this.rs = rs;
+    }
+
+    void advance(){
+        this.number++;
+    }
+
+    /** Characters of text and 8 per other value read through this view. */
+    long bytes(){
+        return bytes;
+    }
+
+    /** 1-based position of this row in the result. */
+    int number(){
+        return number;
+    }
+
+    int columnCount() throws SQLException {
+        return metaData().getColumnCount();
+    }
+
+    String columnName(int column) throws SQLException {
+        return metaData().getColumnName(column);
+    }
+
+    String getString(int column) throws SQLException {
+        String value = rs.getString(column);
+        if (value != null)
+            bytes += value.length();
+        return value;
+    }
+
+    /** The column with char(n) padding stripped, or null. */
+    String getId(int column) throws SQLException {
+        String value = getString(column);
+        return value == null ? null : value.trim();
+    }
+
+    int getInt(int column) throws SQLException {
+        bytes += 8;
+        return rs.getInt(column);
+    }
+
+    long getLong(int column) throws SQLException {
+        bytes += 8;
+        return rs.getLong(column);
+    }
+
+    boolean getBoolean(int column) throws SQLException {
+        bytes += 8;
+        return rs.getBoolean(column);
+    }
+
+    java.sql.Date getDate(int column) throws SQLException {
+        bytes += 8;
+        return rs.getDate(column);
+    }
+
+    java.sql.Timestamp getTimestamp(int column) throws SQLException {
+        bytes += 8;
+        return rs.getTimestamp(column);
+    }
+
+    boolean isNull(int column) throws SQLException {
+        rs.getObject(column);
+        return rs.wasNull();
+    }
+
+    private ResultSetMetaData metaData() throws SQLException {
+        if (meta == null)
+            meta = rs.getMetaData();
+        return meta;
+    }
+}//end Row
+
+/*
+ * Client-side bulk loader for the data/*.csv snapshot.  Each file is
+ * parsed on the client (BOM stripped, yyyy/MM/dd dates rewritten as ISO),
+ * then streamed to the server with COPY ... FROM STDIN when the JDBC
+ * driver offers a CopyManager, or in batched INSERTs when it does not.
+ * USR goes first because the other tables reference it; the rest load
+ * in parallel, one pooled connection per table.
+ */
+class BulkLoader {
+    // rows per batch/commit when falling back to INSERT
+    private static final int INSERT_BATCH = (int) ProfNetwork.setting("load.batchSize", 1000);
+
+    /*
+     * Column layout of one target table and the CSV file that feeds it.
+     * Column types: 't' text, 'i' integer, 'd' date, 's' timestamp.
+     */
+    static class TableSpec {
+        final String table;
+        final String file;
+        final String[] columns;
+        final String types;
+
+        TableSpec(String table, String file, String types, String... columns){
+            this.table = table;
+            this.file = file;
+            this.types = types;
+            this.columns = columns;
+        }
+    }
+
+    static final TableSpec USR = new TableSpec("USR", "usr.csv", "ttttd",
+            "userId", "password", "email", "name", "dateOfBirth");
+    static final TableSpec[] DEPENDENT = {
+        new TableSpec("WORK_EXPR", "Work_Ex.csv", "ttttdd",
+                "userId", "company", "role", "location", "startDate", "endDate"),
+        new TableSpec("EDUCATIONAL_DETAILS", "Edu_Det.csv", "ttttdd",
+                "userId", "instituitionName", "major", "degree", "startdate", "enddate"),
+        new TableSpec("CONNECTION_USR", "Connection.csv", "ttt",
+                "userId", "connectionId", "status"),
+        new TableSpec("MESSAGE", "Message.csv", "itttsit",
+                "msgId", "senderId", "receiverId", "contents", "sendTime", "deleteStatus", "status"),
+    };
+
+    private final ProfNetwork esql;
+    private final File dir;
+
+    BulkLoader(ProfNetwork esql, File dir){
+        this.esql = esql;
+        this.dir = dir;
+    }
+
+    /**
+     * Loads every table whose CSV file exists in the directory and prints
+     * one throughput line per table.
+     *
+     * @return true if every table present loaded cleanly
+     */
+    boolean run(){
+        long start = System.nanoTime();
+        boolean ok = load(USR);
+        ExecutorService workers = Executors.newFixedThreadPool(DEPENDENT.length);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (final TableSpec spec : DEPENDENT){
+            results.add(workers.submit(new Callable<Boolean>(){
+                public Boolean call(){
+                    return load(spec);
+                }
+            }));
+        }
+        for (Future<Boolean> result : results){
+            try{
+                ok &= result.get();
+            }catch (Exception e){
+                System.err.println(e.getMessage());
+                ok = false;
+            }
+        }
+        workers.shutdown();
+        try{
+            // continue message numbering after the loaded ids
+            esql.executeQueryForString("SELECT setval('msgId_seq', COALESCE((SELECT MAX(msgId) FROM MESSAGE), 0) + 1, false)");
+        }catch (SQLException e){
+            System.err.println("Could not reset msgId_seq: " + e.getMessage());
+        }
+        esql.dataLoaded();
+        System.out.printf("Load finished in %.2fs%n", (System.nanoTime() - start) / 1e9);
+        return ok;
+    }//end run
+
+    private boolean load(TableSpec spec){
+        File file = find(spec.file);
+        if (file == null){
+            System.out.println(spec.table + ": skipped, no " + spec.file + " in " + dir);
+            return true;
+        }
+        long start = System.nanoTime();
+        PooledConnection conn = null;
+        boolean broken = false;
+        try{
+            conn = esql.pool().borrow();
+            Reader source = new InputStreamReader(new FileInputStream(file), "UTF-8");
+            CsvRecordReader records = new CsvRecordReader(source);
+            try{
+                records.next(); // header row, names differ from the table columns
+                Object copyManager = copyManager(conn.connection);
+                long rows;
+                String how;
+                if (copyManager != null){
+                    rows = copyIn(copyManager, spec, records);
+                    how = "COPY";
+                }else{
+                    rows = insertAll(conn.connection, spec, records);
+                    how = "INSERT";
+                }
+                double secs = (System.nanoTime() - start) / 1e9;
+                System.out.printf("%s: %d rows in %.2fs (%.0f rows/s) via %s%n",
+                        spec.table, rows, secs, rows / Math.max(secs, 1e-9), how);
+                return true;
+            }finally{
+                records.close();
+            }
+        }catch (Exception e){
+            if (e instanceof SQLException)
+                broken = ConnectionPool.isBroken(conn, (SQLException) e);
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            System.err.println(spec.table + ": load failed - " + cause.getMessage());
+            return false;
+        }finally{
+            if (conn != null)
+                esql.pool().release(conn, broken);
+        }
+    }//end load
+
+    private File find(String name){
+        File[] files = dir.listFiles();
+        if (files == null)
+            return null;
+        for (File f : files){
+            if (f.getName().equalsIgnoreCase(name))
+                return f;
+        }
+        return null;
+    }
+
+    /*
+     * Returns an org.postgresql.copy.CopyManager for the connection, or
+     * null when the driver on the classpath predates the COPY API.
+     */
+    private static Object copyManager(Connection conn){
+        try{
+            Class<?> base = Class.forName("org.postgresql.core.BaseConnection");
+            if (!base.isInstance(conn))
+                return null;
+            Class<?> manager = Class.forName("org.postgresql.copy.CopyManager");
+            return manager.getConstructor(base).newInstance(conn);
+        }catch (Exception e){
+            return null;
+        }
+    }
+
+    private static long copyIn(Object copyManager, TableSpec spec, CsvRecordReader records) throws Exception {
+        StringBuilder sql = new StringBuilder("COPY ").append(spec.table).append(" (");
+        for (int i = 0; i < spec.columns.length; i++){
+            sql.append(i == 0 ? "" : ", ").append(spec.columns[i]);
+        }
+        sql.append(") FROM STDIN WITH CSV");
+        Reader body = new CopyStreamReader(records, spec.types);
+        try{
+            return ((Number) copyManager.getClass().getMethod("copyIn", String.class, Reader.class)
+                    .invoke(copyManager, sql.toString(), body)).longValue();
+        }catch (InvocationTargetException e){
+            throw (Exception) e.getCause();
+        }
+    }
+
+    private static long insertAll(Connection conn, TableSpec spec, CsvRecordReader records) throws SQLException, IOException {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(spec.table).append(" (");
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < spec.columns.length; i++){
+            sql.append(i == 0 ? "" : ", ").append(spec.columns[i]);
+            values.append(i == 0 ? "" : ", ").append(castFor(spec.types.charAt(i)));
+        }
+        sql.append(") VALUES (").append(values).append(")");
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        PreparedStatement stmt = conn.prepareStatement(sql.toString());
+        long rows = 0;
+        try{
+            String[] record;
+            while ((record = records.next()) != null){
+                for (int i = 0; i < spec.columns.length; i++){
+                    String value = normalize(i < record.length ? record[i] : null, spec.types.charAt(i));
+                    if (value == null)
+                        stmt.setNull(i + 1, Types.VARCHAR);
+                    else
+                        stmt.setString(i + 1, value);
+                }
+                stmt.addBatch();
+                if (++rows % INSERT_BATCH == 0){
+                    stmt.executeBatch();
+                    conn.commit();
+                }
+            }
+            stmt.executeBatch();
+            conn.commit();
+            return rows;
+        }catch (SQLException e){
+            conn.rollback();
+            throw e;
+        }finally{
+            stmt.close();
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static String castFor(char type){
+        switch (type){
+            case 'i': return "CAST(? AS integer)";
+            case 'd': return "CAST(? AS date)";
+            case 's': return "CAST(? AS timestamp)";
+            default: return "?";
+        }
+    }
+
+    /**
+     * Cleans one CSV field for the given column type: blanks become null
+     * and yyyy/MM/dd dates (the snapshot mixes both styles) become ISO.
+     */
+    static String normalize(String value, char type){
+        if (value == null)
+            return null;
+        if (type != 't')
+            value = value.trim();
+        if (value.isEmpty())
+            return null;
+        if ((type == 'd' || type == 's') && value.length() >= 10
+                && value.charAt(4) == '/' && value.charAt(7) == '/'){
+            value = value.substring(0, 4) + '-' + value.substring(5, 7) + '-' + value.substring(8, 10) + value.substring(10);
+        }
+        return value;
+    }
+}//end BulkLoader
+
+/*
+ * Minimal RFC 4180 record reader: comma separated, double-quoted fields
+ * may contain commas, doubled quotes and line breaks.  Accepts LF or CRLF
+ * line ends and drops a leading UTF-8 byte order mark.
+ */
+class CsvRecordReader {
+    private final Reader in;
+    private int peeked = -2;
+    private boolean first = true;
+
+    CsvRecordReader(Reader in){
+        this.in = new BufferedReader(in, 1 << 16);
+    }
+
+    /** Returns the next record, or null at end of input. */
+    String[] next() throws IOException {
+        int c = read();
+        if (first){
+            first = false;
+            if (c == '\uFEFF')
+                c = read();
+        }
+        if (c == -1)
+            return null;
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        while (true){
+            if (quoted){
+                if (c == -1){
+                    break;
+                }else if (c == '"'){
+                    int n = read();
+                    if (n == '"'){
+                        field.append('"');
+                    }else{
+                        quoted = false;
+                        unread(n);
+                    }
+                }else{
+                    field.append((char) c);
+                }
+            }else if (c == '"' && field.length() == 0){
+                quoted = true;
+            }else if (c == ','){
+                fields.add(field.toString());
+                field.setLength(0);
+            }else if (c == '\r' || c == '\n' || c == -1){
+                if (c == '\r'){
+                    int n = read();
+                    if (n != '\n')
+                        unread(n);
+                }
+                break;
+            }else{
+                field.append((char) c);
+            }
+            c = read();
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[fields.size()]);
+    }
+
+    void close() throws IOException {
+        in.close();
+    }
+
+    private int read() throws IOException {
+        if (peeked != -2){
+            int c = peeked;
+            peeked = -2;
+            return c;
+        }
+        return in.read();
+    }
+
+    private void unread(int c){
+        peeked = c;
+    }
+}//end CsvRecordReader
+
+/*
+ * Re-serialises normalised CSV records as the character stream fed to
+ * COPY ... FROM STDIN WITH CSV, one record at a time.
+ */
+class CopyStreamReader extends Reader {
+    private final CsvRecordReader records;
+    private final String types;
+    private final StringBuilder line = new StringBuilder();
+    private int pos = 0;
+    private boolean done = false;
+
+    CopyStreamReader(CsvRecordReader records, String types){
+        this.records = records;
+        this.types = types;
+    }
+
+    public int read(char[] buf, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        int copied = 0;
+        while (copied < len){
+            if (pos == line.length() && !fill())
+                break;
+            int n = Math.min(len - copied, line.length() - pos);
+            line.getChars(pos, pos + n, buf, off + copied);
+            pos += n;
+            copied += n;
+        }
+        return copied == 0 ? -1 : copied;
+    }
+
+    public void close(){
+        // the underlying file is closed by the loader
+    }
+
+    private boolean fill() throws IOException {
+        if (done)
+            return false;
+        String[] record = records.next();
+        if (record == null){
+            done = true;
+            return false;
+        }
+        line.setLength(0);
+        pos = 0;
+        for (int i = 0; i < types.length(); i++){
+            if (i > 0)
+                line.append(',');
+            String value = BulkLoader.normalize(i < record.length ? record[i] : null, types.charAt(i));
+            if (value == null)
+                continue; // an unquoted empty field is NULL to COPY
+            line.append('"').append(value.replace("\"", "\"\"")).append('"');
+        }
+        line.append('\n');
+        return true;
+    }
+}//end CopyStreamReader
+
+/*
+ * In-process copy of CONNECTION_USR.  User ids are interned to dense ints;
+ * accepted connections are kept undirected in compressed sparse row form
+ * (offsets/targets, each adjacency sorted) so a neighbour lookup is an
+ * array slice.  Edges accepted after the last build sit in a small sorted
+ * per-user overlay until there are enough of them to rebuild the arrays.
+ * Pending and rejected requests are directed and live in a LongByteMap
+ * keyed by (from << 32 | to).  Loaded by ProfNetwork.graph() and kept in
+ * step by the request/accept/reject paths in User_Connect.
+ */
+class ConnectionGraph {
+    static final byte NONE = 0;
+    static final byte REQUEST = 1;
+    static final byte REJECT = 2;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // userId <-> dense id
+    private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+    private String[] names = new String[1024];
+    private int users = 0;
+
+    // CSR over the ids that existed at the last build
+    private int[] offsets = new int[1];
+    private int[] targets = new int[0];
+
+    // accepted since the last build, per id, each prefix sorted
+    private int[][] extra = new int[1024][];
+    private int[] extraLen = new int[1024];
+    private int overlayEdges = 0;
+
+    private final LongByteMap pending = new LongByteMap();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    /**
+     * Reads all of CONNECTION_USR in one streamed scan.
+     */
+    static ConnectionGraph load(ProfNetwork esql) throws SQLException {
+        final ConnectionGraph graph = new ConnectionGraph();
+        final int[][] edges = { new int[4096], new int[4096] };
+        final int[] count = new int[1];
+        esql.streamRows("SELECT userId, connectionId, status FROM connection_usr", new RowHandler(){
+            public boolean row(Row row) throws SQLException {
+                int from = graph.intern(row.getId(1));
+                int to = graph.intern(row.getId(2));
+                String status = row.getId(3);
+                if ("Accept".equals(status)){
+                    if (count[0] == edges[0].length){
+                        edges[0] = Arrays.copyOf(edges[0], count[0] * 2);
+                        edges[1] = Arrays.copyOf(edges[1], count[0] * 2);
+                    }
+                    edges[0][count[0]] = from;
+                    edges[1][count[0]] = to;
+                    count[0]++;
+                }else{
+                    graph.pending.put(key(from, to), "Reject".equals(status) ? REJECT : REQUEST);
+                }
+                return true;
+            }
+        });
+        graph.build(edges[0], edges[1], count[0]);
+        return graph;
+    }
+
+    /** Dense id of a user, or -1 if the user has no rows in the graph. */
+    int id(String user){
+        lock.readLock().lock();
+        try{
+            Integer id = ids.get(user.trim());
+            return id == null ? -1 : id;
+        }finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    String name(int id){
+        lock.readLock().lock();
+        try{
+            return names[id];
+        }finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Accepted connections of an id as a sorted array of ids. */
+    int[] neighbors(int u){
+        lock.readLock().lock();
+        try{
+            return neighborsLocked(u);
+        }finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    int degree(int u){
+        lock.readLock().lock();
+        try{
+            return baseDegree(u) + (u < extraLen.length ? extraLen[u] : 0);
+        }finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Accepted connections of a user, ordered by userId; empty if unknown. */
+    List<String> connectionNames(String user, String exclude){
+        List<String> result = new ArrayList<String>();
+        lock.readLock().lock();
+        try{
+            Integer u = ids.get(user.trim());
+            Integer skip = exclude == null ? null : ids.get(exclude.trim());
+            if (u == null)
+                return result;
+            for (int v : neighborsLocked(u)){
+                if (skip == null || v != skip)
+                    result.add(names[v]);
+            }
+        }finally{
+            lock.readLock().unlock();
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    boolean connected(String a, String b){
+        lock.readLock().lock();
+        try{
+            Integer u = ids.get(a.trim());
+            Integer v = ids.get(b.trim());
+            return u != null && v != null && connectedLocked(u, v);
+        }finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Status of the directed request from -> to (NONE, REQUEST or REJECT). */
+    byte requestStatus(String from, String to){
+        lock.readLock().lock();
+        try{
+            Integer u = ids.get(from.trim());
+            Integer v = ids.get(to.trim());
+            return u == null || v == null ? NONE : pending.get(key(u, v));
+        }finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    void request(String from, String to){
+        lock.writeLock().lock();
+        try{
+            pending.put(key(intern(from), intern(to)), REQUEST);
+        }finally{
+            lock.writeLock().unlock();
+        }
+    }
+
+    void reject(String from, String to){
+        lock.writeLock().lock();
+        try{
+            pending.put(key(intern(from), intern(to)), REJECT);
+        }finally{
+            lock.writeLock().unlock();
+        }
+    }
+
+    void accept(String from, String to){
+        int u;
+        int v;
+        lock.writeLock().lock();
+        try{
+            u = intern(from);
+            v = intern(to);
+            pending.remove(key(u, v));
+            if (u == v || connectedLocked(u, v))
+                return;
+            addExtra(u, v);
+            addExtra(v, u);
+            overlayEdges++;
+            if (overlayEdges > Math.max(1024, targets.length / 16))
+                compact();
+        }finally{
+            lock.writeLock().unlock();
+        }
+        // outside the lock so listeners may read the graph
+        for (Listener listener : listeners){
+            listener.accepted(u, v);
+        }
+    }
+
+    /*
+     * Told about every newly accepted connection, after the graph has
+     * been updated.
+     */
+    interface Listener {
+        void accepted(int u, int v);
+    }
+
+    void addListener(Listener listener){
+        listeners.add(listener);
+    }
+
+    boolean connected(int u, int v){
+        lock.readLock().lock();
+        try{
+            return connectedLocked(u, v);
+        }finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Hop count between two users over accepted connections, or -1 if
+     * they are further apart than maxDepth (or unknown).  Bidirectional
+     * BFS: each round expands whichever frontier is smaller and stops as
+     * soon as the two searches touch, so only about half the depth is
+     * explored from each end.  Visited sets start small and grow with
+     * the frontiers.
+     */
+    int distance(String from, String to, int maxDepth){
+        lock.readLock().lock();
+        try{
+            Integer s = ids.get(from.trim());
+            Integer t = ids.get(to.trim());
+            if (s == null || t == null)
+                return -1;
+            if (s.intValue() == t.intValue())
+                return 0;
+            IntSet seenA = new IntSet();
+            IntSet seenB = new IntSet();
+            seenA.add(s);
+            seenB.add(t);
+            int[] frontA = { s };
+            int[] frontB = { t };
+            int lenA = 1;
+            int lenB = 1;
+            for (int depth = 0; depth < maxDepth && lenA > 0 && lenB > 0; depth++){
+                boolean expandA = lenA <= lenB;
+                int[] front = expandA ? frontA : frontB;
+                int len = expandA ? lenA : lenB;
+                IntSet seen = expandA ? seenA : seenB;
+                IntSet other = expandA ? seenB : seenA;
+                int[] next = new int[Math.max(4, len * 2)];
+                int nextLen = 0;
+                for (int i = 0; i < len; i++){
+                    int u = front[i];
+                    int base = baseDegree(u);
+                    int more = u < extraLen.length ? extraLen[u] : 0;
+                    for (int k = 0; k < base + more; k++){
+                        int v = k < base ? targets[offsets[u] + k] : extra[u][k - base];
+                        if (other.contains(v))
+                            return depth + 1;
+                        if (seen.add(v)){
+                            if (nextLen == next.length)
+                                next = Arrays.copyOf(next, nextLen * 2);
+                            next[nextLen++] = v;
+                        }
+                    }
+                }
+                if (expandA){
+                    frontA = next;
+                    lenA = nextLen;
+                }else{
+                    frontB = next;
+                    lenB = nextLen;
+                }
+            }
+            return -1;
+        }finally{
+            lock.readLock().unlock();
+        }
+    }//end distance
+
+    int userCount(){
+        lock.readLock().lock();
+        try{
+            return users;
+        }finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    // ---- internals, callers hold the lock (or own the graph during load) ----
+
+    private static long key(int from, int to){
+        return ((long) from << 32) | (to & 0xffffffffL);
+    }
+
+    private int intern(String user){
+        user = user.trim();
+        Integer id = ids.get(user);
+        if (id != null)
+            return id;
+        if (users == names.length)
+            names = Arrays.copyOf(names, users * 2);
+        names[users] = user;
+        ids.put(user, users);
+        return users++;
+    }
+
+    private int baseDegree(int u){
+        return u + 1 < offsets.length ? offsets[u + 1] - offsets[u] : 0;
+    }
+
+    private int[] neighborsLocked(int u){
+        int base = baseDegree(u);
+        int more = u < extraLen.length ? extraLen[u] : 0;
+        int[] out = new int[base + more];
+        int i = 0, j = 0, k = 0;
+        int from = base == 0 ? 0 : offsets[u];
+        while (i < base && j < more){
+            int a = targets[from + i];
+            int b = extra[u][j];
+            out[k++] = a < b ? a : b;
+            if (a < b) i++; else j++;
+        }
+        while (i < base) out[k++] = targets[from + i++];
+        while (j < more) out[k++] = extra[u][j++];
+        return out;
+    }
+
+    private boolean connectedLocked(int u, int v){
+        int base = baseDegree(u);
+        if (base > 0 && Arrays.binarySearch(targets, offsets[u], offsets[u] + base, v) >= 0)
+            return true;
+        return u < extraLen.length && extraLen[u] > 0
+                && Arrays.binarySearch(extra[u], 0, extraLen[u], v) >= 0;
+    }
+
+    private void addExtra(int u, int v){
+        if (u >= extra.length){
+            int size = Math.max(u + 1, extra.length * 2);
+            extra = Arrays.copyOf(extra, size);
+            extraLen = Arrays.copyOf(extraLen, size);
+        }
+        int[] list = extra[u];
+        int len = extraLen[u];
+        if (list == null){
+            list = extra[u] = new int[4];
+        }else if (len == list.length){
+            list = extra[u] = Arrays.copyOf(list, len * 2);
+        }
+        int at = -Arrays.binarySearch(list, 0, len, v) - 1;
+        System.arraycopy(list, at, list, at + 1, len - at);
+        list[at] = v;
+        extraLen[u] = len + 1;
+    }
+
+    /*
+     * Builds the CSR arrays from an edge list, storing each undirected
+     * edge in both adjacencies and dropping duplicates.
+     */
+    private void build(int[] from, int[] to, int count){
+        int n = users;
+        int[] deg = new int[n + 1];
+        for (int e = 0; e < count; e++){
+            if (from[e] == to[e]) continue;
+            deg[from[e]]++;
+            deg[to[e]]++;
+        }
+        int[] start = new int[n + 1];
+        for (int u = 0; u < n; u++){
+            start[u + 1] = start[u] + deg[u];
+        }
+        int[] adj = new int[start[n]];
+        int[] fill = Arrays.copyOf(start, n);
+        for (int e = 0; e < count; e++){
+            if (from[e] == to[e]) continue;
+            adj[fill[from[e]]++] = to[e];
+            adj[fill[to[e]]++] = from[e];
+        }
+        // sort and dedupe each adjacency, compacting in place
+        int[] off = new int[n + 1];
+        int w = 0;
+        for (int u = 0; u < n; u++){
+            off[u] = w;
+            Arrays.sort(adj, start[u], start[u + 1]);
+            for (int i = start[u]; i < start[u + 1]; i++){
+                if (w == off[u] || adj[w - 1] != adj[i])
+                    adj[w++] = adj[i];
+            }
+        }
+        off[n] = w;
+        this.offsets = off;
+        this.targets = w == adj.length ? adj : Arrays.copyOf(adj, w);
+        this.extra = new int[Math.max(1024, n)][];
+        this.extraLen = new int[Math.max(1024, n)];
+        this.overlayEdges = 0;
+    }
+
+    // folds the overlay back into fresh CSR arrays
+    private void compact(){
+        int n = users;
+        int total = targets.length / 2 + overlayEdges;
+        int[] from = new int[total];
+        int[] to = new int[total];
+        int e = 0;
+        for (int u = 0; u < n; u++){
+            for (int v : neighborsLocked(u)){
+                if (u < v){
+                    from[e] = u;
+                    to[e] = v;
+                    e++;
+                }
+            }
+        }
+        build(from, to, e);
+    }
+}//end ConnectionGraph
+
+/*
+ * Open-addressing map from non-negative long keys to non-zero bytes,
+ * used for the sparse request/reject side table of ConnectionGraph.
+ * Linear probing with backward-shift deletion; get() returns 0 for
+ * missing keys.  Not thread safe.
+ */
+class LongByteMap {
+    private static final long EMPTY = -1L;
+    private long[] keys = newKeys(64);
+    private byte[] values = new byte[64];
+    private int size = 0;
+
+    byte get(long key){
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); ; i = (i + 1) & mask){
+            if (keys[i] == key) return values[i];
+            if (keys[i] == EMPTY) return 0;
+        }
+    }
+
+    void put(long key, byte value){
+        if ((size + 1) * 4 > keys.length * 3)
+            resize(keys.length * 2);
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (keys[i] != EMPTY && keys[i] != key){
+            i = (i + 1) & mask;
+        }
+        if (keys[i] == EMPTY)
+            size++;
+        keys[i] = key;
+        values[i] = value;
+    }
+
+    void remove(long key){
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (keys[i] != key){
+            if (keys[i] == EMPTY) return;
+            i = (i + 1) & mask;
+        }
+        // shift later members of the probe run back into the hole
+        int hole = i;
+        for (int j = (hole + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask){
+            int home = slot(keys[j], mask);
+            boolean movable = hole <= j ? (home <= hole || home > j) : (home <= hole && home > j);
+            if (movable){
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        keys[hole] = EMPTY;
+        values[hole] = 0;
+        size--;
+    }
+
+    int size(){
+        return size;
+    }
+
+    private static int slot(long key, int mask){
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private static long[] newKeys(int n){
+        long[] k = new long[n];
+        Arrays.fill(k, EMPTY);
+        return k;
+    }
+
+    private void resize(int capacity){
+        long[] oldKeys = keys;
+        byte[] oldValues = values;
+        keys = newKeys(capacity);
+        values = new byte[capacity];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++){
+            if (oldKeys[i] != EMPTY)
+                put(oldKeys[i], oldValues[i]);
+        }
+    }
+}//end LongByteMap
+
+/*
+ * Growable open-addressing set of non-negative ints (linear probing),
+ * used for BFS visited sets.  Not thread safe.
+ */
+class IntSet {
+    private int[] slots = newSlots(16);
+    private int size = 0;
+
+    /** Adds the value; returns false if it was already present. */
+    boolean add(int value){
+        if ((size + 1) * 2 > slots.length)
+            resize(slots.length * 2);
+        int mask = slots.length - 1;
+        int i = slot(value, mask);
+        while (slots[i] != -1){
+            if (slots[i] == value)
+                return false;
+            i = (i + 1) & mask;
+        }
+        slots[i] = value;
+        size++;
+        return true;
+    }
+
+    boolean contains(int value){
+        int mask = slots.length - 1;
+        for (int i = slot(value, mask); slots[i] != -1; i = (i + 1) & mask){
+            if (slots[i] == value)
+                return true;
+        }
+        return false;
+    }
+
+    int size(){
+        return size;
+    }
+
+    private static int slot(int value, int mask){
+        return (value * 0x9E3779B9) >>> 7 & mask;
+    }
+
+    private static int[] newSlots(int n){
+        int[] s = new int[n];
+        Arrays.fill(s, -1);
+        return s;
+    }
+
+    private void resize(int capacity){
+        int[] old = slots;
+        slots = newSlots(capacity);
+        size = 0;
+        for (int v : old){
+            if (v != -1)
+                add(v);
+        }
+    }
+}//end IntSet
+
+/*
+ * One "people you may know" suggestion and why it was made.
+ */
+class Recommendation {
+    final String userId;
+    final int mutual;
+    final boolean sharedCompany;
+    final boolean sharedSchool;
+    final double score;
+
+    Recommendation(String userId, int mutual, boolean sharedCompany, boolean sharedSchool){
+        this.userId = userId;
+        this.mutual = mutual;
+        this.sharedCompany = sharedCompany;
+        this.sharedSchool = sharedSchool;
+        this.score = mutual * Recommender.MUTUAL_WEIGHT
+                + (sharedCompany ? Recommender.COMPANY_WEIGHT : 0)
+                + (sharedSchool ? Recommender.SCHOOL_WEIGHT : 0);
+    }
+
+    public String toString(){
+        return userId + " (" + mutual + " mutual"
+                + (sharedCompany ? ", same company" : "")
+                + (sharedSchool ? ", same school" : "") + ")";
+    }
+}//end Recommendation
+
+/*
+ * "People you may know": ranks second-degree users by the number of
+ * mutual connections, boosted when they worked at the same company or
+ * studied at the same institution.  The mutual counts for a user are
+ * computed once from the connection graph, cached (LRU, with a TTL for
+ * the company/school sets) and then patched in place as connections are
+ * accepted, so repeat visits only redo the top-K pass over a bounded
+ * heap.  Without the graph it falls back to one aggregate query.
+ */
+class Recommender implements ConnectionGraph.Listener {
+    static final double MUTUAL_WEIGHT = 1.0;
+    static final double COMPANY_WEIGHT = 3.0;
+    static final double SCHOOL_WEIGHT = 2.0;
+    static final int TOP_K = (int) ProfNetwork.setting("recommend.topK", 10);
+
+    private static final int CACHE_SIZE = (int) ProfNetwork.setting("recommend.cacheSize", 1000);
+    private static final long TTL_MS = ProfNetwork.setting("recommend.ttlMs", 600000);
+
+    /*
+     * Cached state for one user: mutual connection count per
+     * second-degree candidate, plus everyone sharing a company/school.
+     */
+    private static class Cached {
+        final IntIntMap mutual;
+        final IntSet coworkers = new IntSet();
+        final IntSet classmates = new IntSet();
+        final long loadedAt = System.currentTimeMillis();
+
+        Cached(IntIntMap mutual){
+            this.mutual = mutual;
+        }
+    }
+
+    private final ProfNetwork esql;
+    private ConnectionGraph listening = null;
+    // guarded by this; bumped by every accepted(), so recommend() can
+    // tell whether an entry it built missed one
+    private long version = 0;
+    // guarded by this
+    private final LinkedHashMap<Integer, Cached> cache = new LinkedHashMap<Integer, Cached>(16, 0.75f, true){
+        protected boolean removeEldestEntry(Map.Entry<Integer, Cached> eldest){
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    Recommender(ProfNetwork esql){
+        this.esql = esql;
+    }
+
+    /**
+     * Returns up to k suggestions for the user, best first.
+     */
+    List<Recommendation> recommend(String user, int k) throws SQLException {
+        ConnectionGraph graph = esql.graph();
+        if (graph == null)
+            return recommendBySql(user, k);
+        synchronized (this){
+            if (listening != graph){
+                // ids are only meaningful within one graph instance
+                cache.clear();
+                graph.addListener(this);
+                listening = graph;
+            }
+        }
+        int id = graph.id(user);
+        if (id < 0)
+            return new ArrayList<Recommendation>();
+        Cached entry;
+        synchronized (this){
+            entry = cache.get(id);
+            if (entry != null && System.currentTimeMillis() - entry.loadedAt > TTL_MS){
+                cache.remove(id);
+                entry = null;
+            }
+        }
+        if (entry == null){
+            long seen;
+            synchronized (this){
+                seen = version;
+            }
+            entry = build(graph, id, user);
+            synchronized (this){
+                // accepted() only patches cached entries, so one that ran
+                // during the build is missing from this entry; answer with
+                // it but leave it out of the cache
+                if (version == seen)
+                    cache.put(id, entry);
+            }
+        }
+        synchronized (this){
+            return topK(graph, entry, k);
+        }
+    }//end recommend
+
+    /*
+     * Keeps the cached counts exact: a new edge u-v raises the mutual
+     * count between u's cached neighbours and v (and vice versa), and for
+     * u and v themselves turns v's (u's) neighbours into candidates.
+     */
+    public synchronized void accepted(int u, int v){
+        version++;
+        ConnectionGraph graph = listening;
+        for (Map.Entry<Integer, Cached> cached : cache.entrySet()){
+            patch(graph, cached.getValue().mutual, cached.getKey(), u, v);
+        }
+    }
+
+    /*
+     * Applies a newly accepted u-v to user c's mutual counts; graph
+     * already has the edge.
+     */
+    static void patch(ConnectionGraph graph, IntIntMap mutual, int c, int u, int v){
+        if (c == u){
+            befriend(graph, mutual, u, v);
+        }else if (c == v){
+            befriend(graph, mutual, v, u);
+        }else{
+            if (graph.connected(c, u) && !graph.connected(c, v))
+                mutual.increment(v);
+            if (graph.connected(c, v) && !graph.connected(c, u))
+                mutual.increment(u);
+        }
+    }
+
+    private static void befriend(ConnectionGraph graph, IntIntMap mutual, int self, int friend){
+        mutual.remove(friend);
+        for (int w : graph.neighbors(friend)){
+            if (w != self && !graph.connected(self, w))
+                mutual.increment(w);
+        }
+    }
+
+    /* Mutual connection count for each second-degree user of id. */
+    static IntIntMap mutualCounts(ConnectionGraph graph, int id){
+        IntIntMap mutual = new IntIntMap();
+        int[] direct = graph.neighbors(id);
+        for (int v : direct){
+            for (int w : graph.neighbors(v)){
+                if (w != id && Arrays.binarySearch(direct, w) < 0)
+                    mutual.increment(w);
+            }
+        }
+        return mutual;
+    }
+
+    private Cached build(ConnectionGraph graph, int id, String user) throws SQLException {
+        Cached entry = new Cached(mutualCounts(graph, id));
+        collect(graph, entry.coworkers, "SELECT DISTINCT b.userId FROM work_expr a JOIN work_expr b ON b.company = a.company WHERE a.userId = ? AND b.userId <> a.userId", user);
+        collect(graph, entry.classmates, "SELECT DISTINCT b.userId FROM educational_details a JOIN educational_details b ON b.instituitionName = a.instituitionName WHERE a.userId = ? AND b.userId <> a.userId", user);
+        return entry;
+    }
+
+    private void collect(final ConnectionGraph graph, final IntSet into, String query, String user) throws SQLException {
+        esql.forEachRow(query, new RowHandler(){
+            public boolean row(Row row) throws SQLException {
+                int id = graph.id(row.getId(1));
+                if (id >= 0)
+                    into.add(id);
+                return true;
+            }
+        }, user);
+    }
+
+    /*
+     * Bounded min-heap over the candidates: O(n log k) instead of
+     * sorting every second-degree user.
+     */
+    private static List<Recommendation> topK(ConnectionGraph graph, Cached entry, int k){
+        PriorityQueue<long[]> heap = new PriorityQueue<long[]>(k + 1, new Comparator<long[]>(){
+            public int compare(long[] a, long[] b){
+                return a[0] != b[0] ? (a[0] < b[0] ? -1 : 1) : (a[1] > b[1] ? -1 : a[1] < b[1] ? 1 : 0);
+            }
+        });
+        IntIntMap mutual = entry.mutual;
+        for (int slot = 0; slot < mutual.capacity(); slot++){
+            int candidate = mutual.keyAt(slot);
+            if (candidate < 0 || mutual.valueAt(slot) <= 0)
+                continue;
+            // fixed point score so the heap compares longs
+            double score = mutual.valueAt(slot) * MUTUAL_WEIGHT
+                    + (entry.coworkers.contains(candidate) ? COMPANY_WEIGHT : 0)
+                    + (entry.classmates.contains(candidate) ? SCHOOL_WEIGHT : 0);
+            heap.offer(new long[]{ Math.round(score * 1000), candidate });
+            if (heap.size() > k)
+                heap.poll();
+        }
+        List<Recommendation> result = new ArrayList<Recommendation>();
+        while (!heap.isEmpty()){
+            int candidate = (int) heap.poll()[1];
+            result.add(new Recommendation(graph.name(candidate), mutual.get(candidate),
+                    entry.coworkers.contains(candidate), entry.classmates.contains(candidate)));
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /*
+     * Graph-less path: the server counts mutual connections per
+     * second-degree user; a few extra rows are fetched so the company and
+     * school boosts can reorder them.
+     */
+    private List<Recommendation> recommendBySql(String user, int k) throws SQLException {
+        final Set<String> coworkers = new HashSet<String>();
+        final Set<String> classmates = new HashSet<String>();
+        esql.forEachRow("SELECT DISTINCT b.userId FROM work_expr a JOIN work_expr b ON b.company = a.company WHERE a.userId = ? AND b.userId <> a.userId", new RowHandler(){
+            public boolean row(Row row) throws SQLException {
+                coworkers.add(row.getId(1));
+                return true;
+            }
+        }, user);
+        esql.forEachRow("SELECT DISTINCT b.userId FROM educational_details a JOIN educational_details b ON b.instituitionName = a.instituitionName WHERE a.userId = ? AND b.userId <> a.userId", new RowHandler(){
+            public boolean row(Row row) throws SQLException {
+                classmates.add(row.getId(1));
+                return true;
+            }
+        }, user);
+        final List<Recommendation> result = new ArrayList<Recommendation>();
+        String query = "WITH e AS (SELECT userId AS a, connectionId AS b FROM connection_usr WHERE status = 'Accept' UNION SELECT connectionId, userId FROM connection_usr WHERE status = 'Accept'), "
+                + "mine AS (SELECT b FROM e WHERE a = ?) "
+                + "SELECT e.b, COUNT(*) FROM e JOIN mine ON e.a = mine.b "
+                + "WHERE e.b <> ? AND e.b NOT IN (SELECT b FROM mine) "
+                + "GROUP BY e.b ORDER BY COUNT(*) DESC, e.b LIMIT ?";
+        esql.forEachRow(query, new RowHandler(){
+            public boolean row(Row row) throws SQLException {
+                String id = row.getId(1);
+                result.add(new Recommendation(id, row.getInt(2), coworkers.contains(id), classmates.contains(id)));
+                return true;
+            }
+        }, user, user, k * 4);
+        Collections.sort(result, new Comparator<Recommendation>(){
+            public int compare(Recommendation a, Recommendation b){
+                return Double.compare(b.score, a.score);
+            }
+        });
+        return result.size() > k ? new ArrayList<Recommendation>(result.subList(0, k)) : result;
+    }
+}//end Recommender
+
+/*
+ * Open-addressing map from non-negative int keys to int counters
+ * (linear probing, backward-shift deletion).  Slots can be walked with
+ * capacity()/keyAt()/valueAt(); empty slots have key -1.  Not thread safe.
+ */
+class IntIntMap {
+    private int[] keys = newKeys(16);
+    private int[] values = new int[16];
+    private int size = 0;
+
+    int get(int key){
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); keys[i] != -1; i = (i + 1) & mask){
+            if (keys[i] == key)
+                return values[i];
+        }
+        return 0;
+    }
+
+    /** Adds one to the counter for key (starting from 0). */
+    void increment(int key){
+        if ((size + 1) * 2 > keys.length)
+            resize(keys.length * 2);
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (keys[i] != -1 && keys[i] != key){
+            i = (i + 1) & mask;
+        }
+        if (keys[i] == -1){
+            keys[i] = key;
+            size++;
+        }
+        values[i]++;
+    }
+
+    void remove(int key){
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (keys[i] != key){
+            if (keys[i] == -1) return;
+            i = (i + 1) & mask;
+        }
+        int hole = i;
+        for (int j = (hole + 1) & mask; keys[j] != -1; j = (j + 1) & mask){
+            int home = slot(keys[j], mask);
+            boolean movable = hole <= j ? (home <= hole || home > j) : (home <= hole && home > j);
+            if (movable){
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        keys[hole] = -1;
+        values[hole] = 0;
+        size--;
+    }
+
+    int size(){
+        return size;
+    }
+
+    int capacity(){
+        return keys.length;
+    }
+
+    int keyAt(int slot){
+        return keys[slot];
+    }
+
+    int valueAt(int slot){
+        return values[slot];
+    }
+
+    private static int slot(int key, int mask){
+        return (key * 0x9E3779B9) >>> 7 & mask;
+    }
+
+    private static int[] newKeys(int n){
+        int[] k = new int[n];
+        Arrays.fill(k, -1);
+        return k;
+    }
+
+    private void resize(int capacity){
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = newKeys(capacity);
+        values = new int[capacity];
+        size = 0;
+        int mask = capacity - 1;
+        for (int s = 0; s < oldKeys.length; s++){
+            if (oldKeys[s] == -1)
+                continue;
+            int i = slot(oldKeys[s], mask);
+            while (keys[i] != -1){
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[s];
+            values[i] = oldValues[s];
+            size++;
+        }
+    }
+}//end IntIntMap
+
+/*
+ * Connections two users have in common.  Both neighbour lists come out of
+ * the connection graph already sorted, so the common case is a linear
+ * merge; when one side is much larger it gallops (exponential then
+ * binary search) through the larger list instead.  Users above
+ * mutual.bitmapDegree get a RoaringBitmap, cached until their
+ * connections change, so hub-vs-hub lookups intersect containers rather
+ * than walking thousands of ids.  Without the graph one INTERSECT query
+ * (BETWEEN) answers it.
+ */
+class MutualConnections implements ConnectionGraph.Listener {
+    private static final int GALLOP_RATIO = (int) ProfNetwork.setting("mutual.gallopRatio", 32);
+    private static final int BITMAP_DEGREE = (int) ProfNetwork.setting("mutual.bitmapDegree", 4096);
+    private static final int BITMAP_CACHE = (int) ProfNetwork.setting("mutual.bitmapCache", 256);
+    // names listed inline on a profile
+    private static final int SHOWN = 5;
+
+    // a's connections INTERSECT b's; INTERSECT binds tighter than UNION,
+    // so each side needs its own parentheses
+    static final String BETWEEN =
+            "(SELECT connectionId FROM connection_usr WHERE userId = ? AND status = 'Accept' UNION SELECT userId FROM connection_usr WHERE connectionId = ? AND status = 'Accept') "
+            + "INTERSECT (SELECT connectionId FROM connection_usr WHERE userId = ? AND status = 'Accept' UNION SELECT userId FROM connection_usr WHERE connectionId = ? AND status = 'Accept') ORDER BY 1";
+
+    private final ProfNetwork esql;
+    private ConnectionGraph listening = null;
+    // guarded by this; bumped by every accepted(), so bitmap() can tell
+    // whether one it built missed an invalidation
+    private long version = 0;
+    // guarded by this
+    private final LinkedHashMap<Integer, RoaringBitmap> bitmaps = new LinkedHashMap<Integer, RoaringBitmap>(16, 0.75f, true){
+        protected boolean removeEldestEntry(Map.Entry<Integer, RoaringBitmap> eldest){
+            return size() > BITMAP_CACHE;
+        }
+    };
+
+    MutualConnections(ProfNetwork esql){
+        this.esql = esql;
+    }
+
+    /**
+     * Users connected to both a and b, ordered by userId.
+     */
+    List<String> between(String a, String b) throws SQLException {
+        ConnectionGraph graph = esql.graph();
+        if (graph == null){
+            List<List<String>> rows = esql.executeQueryAndReturnResult(BETWEEN, a, a, b, b);
+            List<String> result = new ArrayList<String>();
+            for (List<String> row : rows){
+                result.add(row.get(0).trim());
+            }
+            return result;
+        }
+        int u = graph.id(a);
+        int v = graph.id(b);
+        List<String> result = new ArrayList<String>();
+        if (u < 0 || v < 0)
+            return result;
+        for (int id : common(graph, u, v)){
+            result.add(graph.name(id));
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /** Sorted ids adjacent to both u and v. */
+    int[] common(ConnectionGraph graph, int u, int v){
+        synchronized (this){
+            if (listening != graph){
+                bitmaps.clear();
+                graph.addListener(this);
+                listening = graph;
+            }
+        }
+        int du = graph.degree(u);
+        int dv = graph.degree(v);
+        if (du >= BITMAP_DEGREE && dv >= BITMAP_DEGREE)
+            return bitmap(graph, u).and(bitmap(graph, v));
+        int[] a = graph.neighbors(u);
+        int[] b = graph.neighbors(v);
+        if (a.length > b.length){
+            int[] t = a; a = b; b = t;
+        }
+        if ((long) a.length * GALLOP_RATIO < b.length)
+            return gallop(a, b);
+        return merge(a, b);
+    }
+
+    public synchronized void accepted(int u, int v){
+        version++;
+        bitmaps.remove(u);
+        bitmaps.remove(v);
+    }
+
+    private RoaringBitmap bitmap(ConnectionGraph graph, int u){
+        long seen;
+        synchronized (this){
+            RoaringBitmap cached = bitmaps.get(u);
+            if (cached != null)
+                return cached;
+            seen = version;
+        }
+        RoaringBitmap built = RoaringBitmap.of(graph.neighbors(u));
+        synchronized (this){
+            // an accepted() during the build may have changed u's
+            // neighbours; answer with this bitmap but do not cache it
+            if (version == seen)
+                bitmaps.put(u, built);
+        }
+        return built;
+    }
+
+    static int[] merge(int[] a, int[] b){
+        int[] out = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, k = 0;
+        while (i < a.length && j < b.length){
+            if (a[i] < b[j]) i++;
+            else if (a[i] > b[j]) j++;
+            else{
+                out[k++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, k);
+    }
+
+    /* small must be the shorter array */
+    static int[] gallop(int[] small, int[] large){
+        int[] out = new int[small.length];
+        int k = 0;
+        int lo = 0;
+        for (int x : small){
+            int step = 1;
+            int hi = lo;
+            while (hi < large.length && large[hi] < x){
+                lo = hi + 1;
+                hi += step;
+                step <<= 1;
+            }
+            if (hi >= large.length)
+                hi = large.length - 1;
+            if (lo > hi)
+                break;
+            int at = Arrays.binarySearch(large, lo, hi + 1, x);
+            if (at >= 0){
+                out[k++] = x;
+                lo = at + 1;
+            }else{
+                lo = -at - 1;
+            }
+        }
+        return Arrays.copyOf(out, k);
+    }
+
+    /** "3 (alice, bob, carol)", listing at most a few names. */
+    static String summary(List<String> mutual){
+        if (mutual.isEmpty())
+            return "0";
+        StringBuilder text = new StringBuilder().append(mutual.size()).append(" (");
+        for (int i = 0; i < mutual.size() && i < SHOWN; i++){
+            if (i > 0) text.append(", ");
+            text.append(mutual.get(i));
+        }
+        if (mutual.size() > SHOWN)
+            text.append(", ...");
+        return text.append(")").toString();
+    }
+}//end MutualConnections
+
+/*
+ * Compressed set of non-negative ints in the style of Roaring bitmaps:
+ * values are split on their high 16 bits, and each chunk is either a
+ * sorted char[] (up to 4096 values) or a 65536-bit long[] bitmap.
+ * Immutable once built.
+ */
+class RoaringBitmap {
+    private static final int ARRAY_MAX = 4096;
+
+    private final char[] keys;
+    // char[] or long[] per key
+    private final Object[] containers;
+    private final int[] cardinality;
+
+    private RoaringBitmap(char[] keys, Object[] containers, int[] cardinality){
+        this.keys = keys;
+        this.containers = containers;
+        this.cardinality = cardinality;
+    }
+
+    /** Builds a bitmap from ascending, distinct, non-negative values. */
+    static RoaringBitmap of(int[] sorted){
+        List<Character> keys = new ArrayList<Character>();
+        List<Object> containers = new ArrayList<Object>();
+        List<Integer> sizes = new ArrayList<Integer>();
+        int i = 0;
+        while (i < sorted.length){
+            int high = sorted[i] >>> 16;
+            int j = i;
+            while (j < sorted.length && sorted[j] >>> 16 == high){
+                j++;
+            }
+            int n = j - i;
+            if (n <= ARRAY_MAX){
+                char[] low = new char[n];
+                for (int k = 0; k < n; k++){
+                    low[k] = (char) sorted[i + k];
+                }
+                containers.add(low);
+            }else{
+                long[] bits = new long[1024];
+                for (int k = i; k < j; k++){
+                    int low = sorted[k] & 0xFFFF;
+                    bits[low >>> 6] |= 1L << low;
+                }
+                containers.add(bits);
+            }
+            keys.add((char) high);
+            sizes.add(n);
+            i = j;
+        }
+        char[] k = new char[keys.size()];
+        int[] c = new int[sizes.size()];
+        for (int x = 0; x < k.length; x++){
+            k[x] = keys.get(x);
+            c[x] = sizes.get(x);
+        }
+        return new RoaringBitmap(k, containers.toArray(), c);
+    }
+
+    boolean contains(int value){
+        int at = Arrays.binarySearch(keys, (char) (value >>> 16));
+        if (at < 0)
+            return false;
+        char low = (char) value;
+        Object container = containers[at];
+        if (container instanceof long[])
+            return (((long[]) container)[low >>> 6] & (1L << low)) != 0;
+        return Arrays.binarySearch((char[]) container, low) >= 0;
+    }
+
+    int cardinality(){
+        int total = 0;
+        for (int n : cardinality){
+            total += n;
+        }
+        return total;
+    }
+
+    /** Values present in both bitmaps, ascending. */
+    int[] and(RoaringBitmap other){
+        int[] out = new int[Math.min(cardinality(), other.cardinality())];
+        int n = 0;
+        int i = 0, j = 0;
+        while (i < keys.length && j < other.keys.length){
+            if (keys[i] < other.keys[j]){
+                i++;
+            }else if (keys[i] > other.keys[j]){
+                j++;
+            }else{
+                n = andContainers(keys[i] << 16, containers[i], other.containers[j], out, n);
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static int andContainers(int high, Object a, Object b, int[] out, int n){
+        if (a instanceof long[] && b instanceof long[]){
+            long[] x = (long[]) a;
+            long[] y = (long[]) b;
+            for (int w = 0; w < 1024; w++){
+                long word = x[w] & y[w];
+                while (word != 0){
+                    out[n++] = high | (w << 6) | Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                }
+            }
+            return n;
+        }
+        if (a instanceof long[] || b instanceof long[]){
+            long[] bits = (long[]) (a instanceof long[] ? a : b);
+            char[] values = (char[]) (a instanceof long[] ? b : a);
+            for (char low : values){
+                if ((bits[low >>> 6] & (1L << low)) != 0)
+                    out[n++] = high | low;
+            }
+            return n;
+        }
+        char[] x = (char[]) a;
+        char[] y = (char[]) b;
+        int i = 0, j = 0;
+        while (i < x.length && j < y.length){
+            if (x[i] < y[j]) i++;
+            else if (x[i] > y[j]) j++;
+            else{
+                out[n++] = high | x[i];
+                i++;
+                j++;
+            }
+        }
+        return n;
+    }
+}//end RoaringBitmap
+
+/*
+ * Inverted index over WORK_EXPR and EDUCATIONAL_DETAILS for recruiter
+ * searches.  Every field value is lower-cased and split into words, and
+ * each word is indexed under its field ("company:google", "major:cs").
+ * A term maps to a posting list of dense user ids stored as ascending
+ * deltas in varint bytes, so common terms take a byte or two per user.
+ * Queries are ANDs of terms with OR between groups, answered by merging
+ * posting lists without touching the tables.  No menu writes work or
+ * education rows, so an index is never patched: ProfNetwork.profileIndex()
+ * builds a new one when this one is profileIndex.ttlMs old or a bulk
+ * load has finished.
+ */
+class ProfileIndex {
+    static final String[] FIELDS = { "company", "role", "location", "school", "major", "degree" };
+    private static final long TTL_MS = ProfNetwork.setting("profileIndex.ttlMs", 600000);
+
+    private final long loadedAt = System.currentTimeMillis();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+    private final List<String> names = new ArrayList<String>();
+    private final HashMap<String, PostingList> postings = new HashMap<String, PostingList>();
+
+    private static final String WORK_QUERY = "SELECT userId, company, role, location FROM work_expr";
+    private static final String EDU_QUERY = "SELECT userId, instituitionName, major, degree FROM educational_details";
+
+    /**
+     * Streams both tables once and builds every posting list.
+     */
+    static ProfileIndex load(ProfNetwork esql) throws SQLException {
+        final ProfileIndex index = new ProfileIndex();
+        // by dense id, so the posting lists are filled in ascending order
+        final List<Set<String>> terms = new ArrayList<Set<String>>();
+        esql.streamRows(WORK_QUERY, collector(index, terms, "company", "role", "location"));
+        esql.streamRows(EDU_QUERY, collector(index, terms, "school", "major", "degree"));
+        index.lock.writeLock().lock();
+        try{
+            for (int id = 0; id < terms.size(); id++){
+                index.apply(id, terms.get(id));
+            }
+        }finally{
+            index.lock.writeLock().unlock();
+        }
+        return index;
+    }
+
+    private static RowHandler collector(final ProfileIndex index, final List<Set<String>> terms, final String... fields){
+        return new RowHandler(){
+            public boolean row(Row row) throws SQLException {
+                int id = index.intern(row.getId(1));
+                while (terms.size() <= id){
+                    terms.add(new HashSet<String>());
+                }
+                Set<String> mine = terms.get(id);
+                for (int i = 0; i < fields.length; i++){
+                    tokenize(fields[i], row.getString(i + 2), mine);
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Users matching the query, ordered by userId.  Terms are
+     * field:word or a bare word (any field); terms are ANDed and OR
+     * separates alternatives.
+     */
+    List<String> search(String query){
+        lock.readLock().lock();
+        try{
+            int[] result = new int[0];
+            for (String group : query.trim().split("(?i)\\s+or\\s+")){
+                int[] matched = null;
+                for (String term : group.trim().split("\\s+")){
+                    if (term.isEmpty())
+                        continue;
+                    int[] hits = lookup(term.toLowerCase());
+                    matched = matched == null ? hits : MutualConnections.merge(matched, hits);
+                    if (matched.length == 0)
+                        break;
+                }
+                if (matched != null)
+                    result = union(result, matched);
+            }
+            List<String> users = new ArrayList<String>(result.length);
+            for (int id : result){
+                users.add(names.get(id));
+            }
+            Collections.sort(users);
+            return users;
+        }finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    int termCount(){
+        lock.readLock().lock();
+        try{
+            return postings.size();
+        }finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Whether this index is older than profileIndex.ttlMs. */
+    boolean expired(){
+        return System.currentTimeMillis() - loadedAt > TTL_MS;
+    }
+
+    private int[] lookup(String term){
+        int colon = term.indexOf(':');
+        if (colon >= 0){
+            PostingList list = postings.get(term.substring(0, colon) + ":" + normalize(term.substring(colon + 1)));
+            return list == null ? new int[0] : list.decode();
+        }
+        int[] any = new int[0];
+        for (String field : FIELDS){
+            PostingList list = postings.get(field + ":" + normalize(term));
+            if (list != null)
+                any = union(any, list.decode());
+        }
+        return any;
+    }
+
+    /* caller holds the write lock; ids come in ascending order */
+    private void apply(int id, Set<String> terms){
+        for (String term : terms){
+            PostingList list = postings.get(term);
+            if (list == null){
+                list = new PostingList();
+                postings.put(term, list);
+            }
+            list.add(id);
+        }
+    }
+
+    private int intern(String user){
+        user = user.trim();
+        Integer id = ids.get(user);
+        if (id != null)
+            return id;
+        ids.put(user, names.size());
+        names.add(user);
+        return names.size() - 1;
+    }
+
+    static void tokenize(String field, String value, Set<String> into){
+        if (value == null)
+            return;
+        for (String word : value.toLowerCase().split("[^\\p{L}\\p{N}]+")){
+            if (!word.isEmpty())
+                into.add(field + ":" + word);
+        }
+    }
+
+    private static String normalize(String word){
+        return word.toLowerCase().replaceAll("[^\\p{L}\\p{N}]+", "");
+    }
+
+    static int[] union(int[] a, int[] b){
+        int[] out = new int[a.length + b.length];
+        int i = 0, j = 0, k = 0;
+        while (i < a.length && j < b.length){
+            if (a[i] < b[j]) out[k++] = a[i++];
+            else if (a[i] > b[j]) out[k++] = b[j++];
+            else{
+                out[k++] = a[i++];
+                j++;
+            }
+        }
+        while (i < a.length) out[k++] = a[i++];
+        while (j < b.length) out[k++] = b[j++];
+        return Arrays.copyOf(out, k);
+    }
+}//end ProfileIndex
+
+/*
+ * Sorted set of non-negative ints stored as varint-encoded gaps.  Ids are
+ * appended in ascending order, each in O(1), as ProfileIndex.load adds
+ * them; the list is never patched afterwards.
+ */
+class PostingList {
+    private byte[] data = new byte[8];
+    private int length = 0;
+    private int size = 0;
+    private int last = -1;
+
+    /** Appends id, which must not be below the last id added. */
+    void add(int id){
+        if (id == last)
+            return;
+        if (id < last)
+            throw new IllegalArgumentException("PostingList ids must ascend: " + id + " after " + last);
+        append(id - last);
+        last = id;
+        size++;
+    }
+
+    int size(){
+        return size;
+    }
+
+    int[] decode(){
+        int[] out = new int[size];
+        int value = -1;
+        int pos = 0;
+        for (int i = 0; i < size; i++){
+            int gap = 0;
+            int shift = 0;
+            byte b;
+            do{
+                b = data[pos++];
+                gap |= (b & 0x7F) << shift;
+                shift += 7;
+            }while (b < 0);
+            value += gap;
+            out[i] = value;
+        }
+        return out;
+    }
+
+    private void append(int gap){
+        if (length + 5 > data.length)
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + 5));
+        while ((gap & ~0x7F) != 0){
+            data[length++] = (byte) ((gap & 0x7F) | 0x80);
+            gap >>>= 7;
+        }
+        data[length++] = (byte) gap;
+    }
+}//end PostingList
+
+/*
+ * Everything View_User_Profile shows, read in one round trip: the header,
+ * the viewer's connection and request flags, and the work and education
+ * rows come back from a single UNION ALL in which the first column tags
+ * the row kind.  The columns are cast to text so the branches line up.
+ */
+class Profile {
+    final String userId;
+    final String name;
+    final String dateOfBirth;
+    final List<Job> work;
+    final List<School> education;
+    // relative to the viewer the profile was fetched for
+    final boolean connected;
+    final boolean requestPending;
+
+    static final class Job {
+        final String company, role, location, startDate, endDate;
+
+        Job(String company, String role, String location, String startDate, String endDate){
+            this.company = company;
+            this.role = role;
+            this.location = location;
+            this.startDate = startDate;
+            this.endDate = endDate;
+        }
+
+        public String toString(){
+            return Profile.join(company, role, location, startDate, endDate);
+        }
+    }
+
+    static final class School {
+        final String institution, major, degree, startDate, endDate;
+
+        School(String institution, String major, String degree, String startDate, String endDate){
+            this.institution = institution;
+            this.major = major;
+            this.degree = degree;
+            this.startDate = startDate;
+            this.endDate = endDate;
+        }
+
+        public String toString(){
+            return Profile.join(institution, major, degree, startDate, endDate);
+        }
+    }
+
+    Profile(String userId, String name, String dateOfBirth, List<Job> work, List<School> education,
+            boolean connected, boolean requestPending){
+        this.userId = userId;
+        this.name = name;
+        this.dateOfBirth = dateOfBirth;
+        this.work = Collections.unmodifiableList(work);
+        this.education = Collections.unmodifiableList(education);
+        this.connected = connected;
+        this.requestPending = requestPending;
+    }
+
+    /** The same profile as seen by a different viewer. */
+    Profile withViewer(boolean connected, boolean requestPending){
+        return new Profile(userId, name, dateOfBirth, work, education, connected, requestPending);
+    }
+
+    private static final String QUERY =
+            "SELECT 0 AS part, u.name AS a, CAST(u.dateOfBirth AS text) AS b, "
+            + "CAST(EXISTS (SELECT 1 FROM connection_usr c WHERE c.status = 'Accept' AND ((c.userId = ? AND c.connectionId = u.userId) OR (c.userId = u.userId AND c.connectionId = ?))) AS text) AS c, "
+            + "CAST(EXISTS (SELECT 1 FROM connection_usr c WHERE c.status = 'Request' AND ((c.userId = ? AND c.connectionId = u.userId) OR (c.userId = u.userId AND c.connectionId = ?))) AS text) AS d, "
+            + "CAST(NULL AS text) AS e FROM usr u WHERE u.userId = ? "
+            + "UNION ALL SELECT 1, w.company, w.role, w.location, CAST(w.startDate AS text), CAST(w.endDate AS text) FROM work_expr w WHERE w.userId = ? "
+            + "UNION ALL SELECT 2, d.instituitionName, d.major, d.degree, CAST(d.startdate AS text), CAST(d.enddate AS text) FROM educational_details d WHERE d.userId = ? "
+            + "ORDER BY 1, 5";
+
+    /**
+     * Reads a profile and its flags relative to viewer in one statement,
+     * or returns null if there is no such user.
+     */
+    static Profile fetch(ProfNetwork esql, String viewer, String userId) throws SQLException {
+        final String[] header = new String[4];
+        final List<Job> work = new ArrayList<Job>();
+        final List<School> education = new ArrayList<School>();
+        final String id = userId.trim();
+        String me = viewer.trim();
+        esql.forEachRow(QUERY, new RowHandler(){
+            public boolean row(Row row) throws SQLException {
+                switch (row.getInt(1)){
+                    case 0:
+                        for (int i = 0; i < 4; i++){
+                            header[i] = row.getId(i + 2);
+                        }
+                        break;
+                    case 1:
+                        work.add(new Job(row.getId(2), row.getId(3), row.getId(4), row.getId(5), row.getId(6)));
+                        break;
+                    default:
+                        education.add(new School(row.getId(2), row.getId(3), row.getId(4), row.getId(5), row.getId(6)));
+                }
+                return true;
+            }
+        }, me, me, me, me, id, id, id);
+        if (header[2] == null)
+            return null;
+        return new Profile(id, header[0], header[1], work, education, isTrue(header[2]), isTrue(header[3]));
+    }
+
+    private static boolean isTrue(String flag){
+        return "true".equals(flag) || "t".equals(flag);
+    }
+
+    static String join(String... fields){
+        StringBuilder text = new StringBuilder();
+        for (String field : fields){
+            if (field == null || field.isEmpty())
+                continue;
+            if (text.length() > 0)
+                text.append(", ");
+            text.append(field);
+        }
+        return text.toString();
+    }
+}//end Profile
+
+/*
+ * Read-through cache of Profile objects keyed by userId.  Profiles are
+ * read far more often than written, so entries live until they are
+ * evicted (LRU, profileCache.size entries), expire (profileCache.ttlMs)
+ * or are invalidated by a write path.  The viewer-relative flags are
+ * never cached: on a hit they come from the connection graph, or from
+ * one small EXISTS query when the graph is off.
+ */
+class ProfileCache {
+    private static final int MAX_SIZE = (int) ProfNetwork.setting("profileCache.size", 1000);
+    private static final long TTL_MS = ProfNetwork.setting("profileCache.ttlMs", 300000);
+
+    private static final class Cached {
+        final Profile profile;
+        final long loadedAt = System.currentTimeMillis();
+
+        Cached(Profile profile){
+            this.profile = profile;
+        }
+    }
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong loadNanos = new AtomicLong();
+    private final AtomicLong maxLoadNanos = new AtomicLong();
+
+    // guarded by this; bumped by every invalidate() and clear(), even of
+    // a user not cached, so get() can tell whether a profile it loaded
+    // may predate a write
+    private long generation = 0;
+    // guarded by this
+    private final LinkedHashMap<String, Cached> entries = new LinkedHashMap<String, Cached>(16, 0.75f, true){
+        protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest){
+            if (size() <= MAX_SIZE)
+                return false;
+            evictions.incrementAndGet();
+            return true;
+        }
+    };
+
+    /**
+     * Returns userId's profile as seen by viewer, or null if there is no
+     * such user.  A miss costs the one round trip of Profile.fetch.
+     */
+    Profile get(ProfNetwork esql, String viewer, String userId) throws SQLException {
+        String id = userId.trim();
+        Cached cached;
+        long seen;
+        synchronized (this){
+            seen = generation;
+            cached = entries.get(id);
+            if (cached != null && System.currentTimeMillis() - cached.loadedAt > TTL_MS){
+                entries.remove(id);
+                expirations.incrementAndGet();
+                cached = null;
+            }
+        }
+        if (cached != null){
+            hits.incrementAndGet();
+            return withFlags(esql, cached.profile, viewer);
+        }
+        misses.incrementAndGet();
+        long start = System.nanoTime();
+        Profile profile = Profile.fetch(esql, viewer, id);
+        long took = System.nanoTime() - start;
+        loadNanos.addAndGet(took);
+        long max;
+        while (took > (max = maxLoadNanos.get()) && !maxLoadNanos.compareAndSet(max, took)){
+            // retry
+        }
+        if (profile != null){
+            synchronized (this){
+                // an invalidate() during the fetch may mean this is the
+                // profile from before the write; return it, do not keep it
+                if (generation == seen)
+                    entries.put(id, new Cached(profile));
+            }
+        }
+        return profile;
+    }
+
+    /** Drops a user's profile so the next view reads it again. */
+    void invalidate(String userId){
+        synchronized (this){
+            generation++;
+            if (entries.remove(userId.trim()) == null)
+                return;
+        }
+        invalidations.incrementAndGet();
+    }
+
+    /** Drops every cached profile. */
+    synchronized void clear(){
+        generation++;
+        entries.clear();
+    }
+
+    String stats(){
+        long h = hits.get();
+        long m = misses.get();
+        int size;
+        synchronized (this){
+            size = entries.size();
+        }
+        return String.format("profiles: size=%d max=%d hits=%d misses=%d hitRate=%.1f%% evictions=%d expirations=%d invalidations=%d avgLoad=%.3fms maxLoad=%.3fms",
+                size, MAX_SIZE, h, m, h + m == 0 ? 0.0 : 100.0 * h / (h + m),
+                evictions.get(), expirations.get(), invalidations.get(),
+                m == 0 ? 0.0 : loadNanos.get() / (double) m / 1e6, maxLoadNanos.get() / 1e6);
+    }
+
+    private static Profile withFlags(ProfNetwork esql, Profile profile, String viewer) throws SQLException {
+        String me = viewer.trim();
+        if (me.equals(profile.userId))
+            return profile.withViewer(false, false);
+        ConnectionGraph graph = esql.graph();
+        if (graph != null){
+            boolean pending = graph.requestStatus(me, profile.userId) == ConnectionGraph.REQUEST
+                    || graph.requestStatus(profile.userId, me) == ConnectionGraph.REQUEST;
+            return profile.withViewer(graph.connected(me, profile.userId), pending);
+        }
+        List<List<String>> flags = esql.executeQueryAndReturnResult(
+                "SELECT CAST(bool_or(status = 'Accept') AS text), CAST(bool_or(status = 'Request') AS text) FROM connection_usr "
+                + "WHERE (userId = ? AND connectionId = ?) OR (userId = ? AND connectionId = ?)",
+                me, profile.userId, profile.userId, me);
+        List<String> row = flags.get(0);
+        return profile.withViewer("true".equals(row.get(0)), "true".equals(row.get(1)));
+    }
+}//end ProfileCache
+
+/*
+ * Write-behind path for outgoing messages.  send() stamps the message and
+ * puts it on a bounded queue, so the user does not wait for the INSERT; a
+ * single writer thread drains the queue and inserts up to
+ * dispatch.batchSize messages per transaction with executeBatch.  Rows
+ * are inserted as 'Sent' and moved to 'Delivered' by the same transaction,
+ * so the commit is what delivers them (and what unread_trigger counts).
+ * sendTime is the database's CURRENT_TIMESTAMP, as on the synchronous
+ * path, so every mailbox is ordered by one clock.  A message that cannot
+ * be written is marked 'Failed' on its handle and kept for its sender
+ * (failures()), so the menus can tell them.  When the queue
+ * stays full for dispatch.offerTimeoutMs, send() returns null and the
+ * caller inserts synchronously, which slows senders down to what the
+ * database can take.
+ */
+class MessageDispatcher {
+    static final String SENT = "Sent";
+    static final String DELIVERED = "Delivered";
+    static final String FAILED = "Failed";
+
+    private static final int QUEUE_SIZE = (int) ProfNetwork.setting("dispatch.queueSize", 10000);
+    private static final int BATCH_SIZE = (int) ProfNetwork.setting("dispatch.batchSize", 500);
+    private static final long OFFER_TIMEOUT_MS = ProfNetwork.setting("dispatch.offerTimeoutMs", 50);
+    private static final long DRAIN_TIMEOUT_MS = ProfNetwork.setting("dispatch.drainTimeoutMs", 30000);
+
+    private static final String RESERVE = "SELECT nextval('msgId_seq') FROM generate_series(1, ?)";
+    private static final String INSERT = "INSERT INTO message (msgId, senderId, receiverId, contents, sendTime, deleteStatus, status) VALUES(?, ?, ?, ?, CURRENT_TIMESTAMP, 0, 'Sent')";
+    private static final String DELIVER = "UPDATE message SET status = 'Delivered' WHERE msgId = ANY (CAST(? AS integer[])) AND status = 'Sent'";
+
+    /**
+     * A queued message; status moves from SENT to DELIVERED (with msgId
+     * set) or to FAILED (with error set).
+     */
+    static final class Outgoing {
+        final String senderId;
+        final String receiverId;
+        final String contents;
+        private volatile int msgId = 0;
+        private volatile String status = SENT;
+        private volatile String error = null;
+
+        Outgoing(String senderId, String receiverId, String contents){
+            this.senderId = senderId;
+            this.receiverId = receiverId;
+            this.contents = contents;
+        }
+
+        String status(){
+            return status;
+        }
+
+        /** The row's id once delivered, else 0. */
+        int msgId(){
+            return msgId;
+        }
+
+        /** Why the message failed, or null. */
+        String error(){
+            return error;
+        }
+    }
+
+    private final ProfNetwork esql;
+    private final BlockingQueue<Outgoing> queue = new ArrayBlockingQueue<Outgoing>(QUEUE_SIZE);
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    // failed messages per sender, until failures() hands them out
+    private final ConcurrentHashMap<String, List<Outgoing>> failures = new ConcurrentHashMap<String, List<Outgoing>>();
+
+    MessageDispatcher(ProfNetwork esql){
+        this.esql = esql;
+        this.writer = new Thread(new Runnable(){
+            public void run(){
+                drain();
+            }
+        }, "profnetwork-message-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queues a message and returns its handle, or null if the queue stayed
+     * full (or the dispatcher is closed) and the caller should insert it
+     * itself.
+     */
+    Outgoing send(String senderId, String receiverId, String contents){
+        if (closed)
+            return null;
+        Outgoing message = new Outgoing(senderId.trim(), receiverId.trim(), contents);
+        try{
+            if (queue.offer(message, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)){
+                queued.incrementAndGet();
+                return message;
+            }
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        rejected.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Messages from sender that could not be written since the last call;
+     * each is returned once.
+     */
+    List<Outgoing> failures(String sender){
+        List<Outgoing> list = failures.remove(sender.trim());
+        if (list == null)
+            return Collections.emptyList();
+        synchronized (list){
+            return new ArrayList<Outgoing>(list);
+        }
+    }
+
+    /**
+     * Stops taking messages and waits for the queue to be written.
+     */
+    void close(){
+        closed = true;
+        try{
+            writer.join(DRAIN_TIMEOUT_MS);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        if (!queue.isEmpty())
+            System.err.println(queue.size() + " queued message(s) were not written.");
+    }
+
+    String stats(){
+        long b = batches.get();
+        return String.format("dispatch: queued=%d delivered=%d failed=%d pending=%d batches=%d avgBatch=%.1f syncFallbacks=%d",
+                queued.get(), delivered.get(), failed.get(), queue.size(), b,
+                b == 0 ? 0.0 : delivered.get() / (double) b, rejected.get());
+    }
+
+    private void drain(){
+        List<Outgoing> batch = new ArrayList<Outgoing>(BATCH_SIZE);
+        while (true){
+            try{
+                // not interrupted by close(): that would also abort a
+                // pool borrow in the middle of writing a batch
+                Outgoing first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null){
+                    if (closed && queue.isEmpty())
+                        return;
+                    continue;
+                }
+                batch.add(first);
+            }catch (InterruptedException e){
+                return;
+            }
+            queue.drainTo(batch, BATCH_SIZE - 1);
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    private void write(List<Outgoing> batch){
+        try{
+            final int[] ids = new int[batch.size()];
+            esql.forEachRow(RESERVE, new RowHandler(){
+                public boolean row(Row row) throws SQLException {
+                    ids[row.number() - 1] = row.getInt(1);
+                    return true;
+                }
+            }, batch.size());
+            List<Object[]> rows = new ArrayList<Object[]>(batch.size());
+            for (int i = 0; i < ids.length; i++){
+                Outgoing message = batch.get(i);
+                rows.add(new Object[]{ ids[i], message.senderId, message.receiverId, message.contents });
+            }
+            esql.executeBatch(INSERT, rows, DELIVER, MessageService.idArray(ids));
+            batches.incrementAndGet();
+            for (int i = 0; i < ids.length; i++){
+                batch.get(i).msgId = ids[i];
+                batch.get(i).status = DELIVERED;
+            }
+            delivered.addAndGet(batch.size());
+            return;
+        }catch (SQLException e){
+            if (batch.size() == 1){
+                fail(batch.get(0), e);
+                return;
+            }
+        }
+        // one bad row (say an unknown receiver) fails the whole batch;
+        // retry one by one so only that message is lost
+        for (Outgoing message : batch){
+            write(Collections.singletonList(message));
+        }
+    }
+
+    private void fail(Outgoing message, SQLException e){
+        message.error = e.getMessage();
+        message.status = FAILED;
+        failed.incrementAndGet();
+        List<Outgoing> fresh = new ArrayList<Outgoing>();
+        List<Outgoing> list = failures.putIfAbsent(message.senderId, fresh);
+        if (list == null)
+            list = fresh;
+        synchronized (list){
+            list.add(message);
+        }
+    }
+}//end MessageDispatcher
+
+/*
+ * Thrown by readChoice when a session's input has ended, so every menu
+ * loop unwinds instead of prompting forever.
+ */
+class SessionClosed extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    SessionClosed(String message){
+        super(message);
+    }
+}//end SessionClosed
+
+/*
+ * One connected client in server mode.  The menus read ProfNetwork.in and
+ * print to System.out/err as they always have; both are routed by the
+ * thread's current session (SessionInput, SessionOutput), so the menu
+ * code needs no session parameter.
+ */
+class Session implements Runnable {
+    private static final ThreadLocal<Session> CURRENT = new ThreadLocal<Session>();
+
+    final BufferedReader in;
+    // this session's own stream: a slow client only ever blocks its own
+    // thread on this stream's lock, never another session's output
+    final PrintStream out;
+    private final Socket socket;
+    private final ProfNetwork esql;
+
+    Session(ProfNetwork esql, Socket socket) throws IOException {
+        this.esql = esql;
+        this.socket = socket;
+        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        this.out = new PrintStream(new BufferedOutputStream(socket.getOutputStream()), false, "UTF-8");
+    }
+
+    /** The session served by the calling thread, or null on the console. */
+    static Session current(){
+        return CURRENT.get();
+    }
+
+    public void run(){
+        CURRENT.set(this);
+        try{
+            ProfNetwork.Greeting();
+            ProfNetwork.runMenus(esql);
+            System.out.println("Bye !");
+        }catch (SessionClosed e){
+            // client went away
+        }catch (RuntimeException e){
+            System.err.println(e.getMessage());
+        }finally{
+            out.flush();
+            CURRENT.remove();
+            try{
+                socket.close();
+            }catch (IOException e){
+                // ignored.
+            }
+        }
+    }
+}//end Session
+
+/*
+ * ProfNetwork.in: the session's socket reader on a session thread, the
+ * keyboard otherwise.  Pending output is flushed before every read so
+ * prompts printed with print() reach the client.
+ */
+class SessionInput extends BufferedReader {
+    SessionInput(Reader console){
+        super(console);
+    }
+
+    public String readLine() throws IOException {
+        Session session = Session.current();
+        if (session == null)
+            return super.readLine();
+        System.out.flush();
+        return session.in.readLine();
+    }
+}//end SessionInput
+
+/*
+ * Installed as System.out/err in server mode.  Every call is handed to
+ * the calling thread's session stream, or to the original stream for
+ * other threads.  It overrides every PrintStream method and never takes
+ * its own lock, so sessions do not serialize on one shared stream.
+ */
+class SessionOutput extends PrintStream {
+    private final PrintStream fallback;
+
+    SessionOutput(PrintStream fallback){
+        super(fallback);
+        this.fallback = fallback;
+    }
+
+    private PrintStream target(){
+        Session session = Session.current();
+        return session == null ? fallback : session.out;
+    }
+
+    public void write(int b){ target().write(b); }
+    public void write(byte[] b, int off, int len){ target().write(b, off, len); }
+    public void write(byte[] b) throws IOException { target().write(b); }
+    public void flush(){ target().flush(); }
+    public void close(){ target().flush(); }
+    public boolean checkError(){ return target().checkError(); }
+
+    public void print(boolean b){ target().print(b); }
+    public void print(char c){ target().print(c); }
+    public void print(int i){ target().print(i); }
+    public void print(long l){ target().print(l); }
+    public void print(float f){ target().print(f); }
+    public void print(double d){ target().print(d); }
+    public void print(char[] s){ target().print(s); }
+    public void print(String s){ target().print(s); }
+    public void print(Object o){ target().print(o); }
+
+    public void println(){ target().println(); }
+    public void println(boolean b){ target().println(b); }
+    public void println(char c){ target().println(c); }
+    public void println(int i){ target().println(i); }
+    public void println(long l){ target().println(l); }
+    public void println(float f){ target().println(f); }
+    public void println(double d){ target().println(d); }
+    public void println(char[] s){ target().println(s); }
+    public void println(String s){ target().println(s); }
+    public void println(Object o){ target().println(o); }
+
+    public PrintStream printf(String format, Object... args){ target().printf(format, args); return this; }
+    public PrintStream printf(Locale l, String format, Object... args){ target().printf(l, format, args); return this; }
+    public PrintStream format(String format, Object... args){ target().format(format, args); return this; }
+    public PrintStream format(Locale l, String format, Object... args){ target().format(l, format, args); return this; }
+    public PrintStream append(CharSequence csq){ target().append(csq); return this; }
+    public PrintStream append(CharSequence csq, int start, int end){ target().append(csq, start, end); return this; }
+    public PrintStream append(char c){ target().append(c); return this; }
+}//end SessionOutput
+
+/*
+ * Server mode: accepts clients on a loopback TCP port and runs the menus
+ * for each on its own thread, all sharing one ProfNetwork (and so one
+ * connection pool).  On a JVM with virtual threads every session gets
+ * one, so thousands of mostly idle sessions cost little; older JVMs use
+ * a cached pool of platform threads.
+ */
+class Server {
+    private static final int MAX_SESSIONS = (int) ProfNetwork.setting("serve.maxSessions", 10000);
+
+    private final ProfNetwork esql;
+    private final int port;
+    private final AtomicInteger active = new AtomicInteger();
+
+    Server(ProfNetwork esql, int port){
+        this.esql = esql;
+        this.port = port;
+    }
+
+    /**
+     * Serves clients until the process is stopped.
+     */
+    void run() throws IOException {
+        PrintStream console = System.out;
+        System.setOut(new SessionOutput(System.out));
+        System.setErr(new SessionOutput(System.err));
+        ExecutorService sessions = newSessionExecutor();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+            public void run(){
+                esql.cleanup();
+            }
+        }));
+        ServerSocket listener = new ServerSocket(port, 128, InetAddress.getByName("127.0.0.1"));
+        console.println("Serving on 127.0.0.1:" + port);
+        try{
+            while (true){
+                final Socket socket = listener.accept();
+                if (active.get() >= MAX_SESSIONS){
+                    OutputStreamWriter refuse = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+                    refuse.write("Server busy, please try again later.\n");
+                    refuse.flush();
+                    socket.close();
+                    continue;
+                }
+                final Session session = new Session(esql, socket);
+                active.incrementAndGet();
+                sessions.execute(new Runnable(){
+                    public void run(){
+                        try{
+                            session.run();
+                        }finally{
+                            active.decrementAndGet();
+                        }
+                    }
+                });
+            }
+        }finally{
+            listener.close();
+            sessions.shutdown();
+        }
+    }
+
+    private static ExecutorService newSessionExecutor(){
+        try{
+            // Java 21+, looked up reflectively so this still builds for 7
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }catch (Exception e){
+            return Executors.newCachedThreadPool(new ThreadFactory(){
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r){
+                    Thread t = new Thread(r, "profnetwork-session-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+}//end Server
+
+/*
+ * A userId with the display name, as returned by user searches.
+ */
+final class UserSummary {
+    final String userId;
+    final String name;
+
+    UserSummary(String userId, String name){
+        this.userId = userId;
+        this.name = name;
+    }
+
+    public String toString(){
+        return userId + "\t" + name;
+    }
+}//end UserSummary
+
+/*
+ * One message row.  contents is null where a listing did not fetch it.
+ */
+final class Message {
+    final int msgId;
+    final String senderId;
+    final String receiverId;
+    final String contents;
+    final Timestamp sendTime;
+    final String status;
+
+    Message(int msgId, String senderId, String receiverId, String contents, Timestamp sendTime, String status){
+        this.msgId = msgId;
+        this.senderId = senderId;
+        this.receiverId = receiverId;
+        this.contents = contents;
+        this.sendTime = sendTime;
+        this.status = status;
+    }
+}//end Message
+
+/*
+ * A window of messages, newest first, plus whether there are older ones.
+ * The next window is asked for with the sendTime/msgId of the last one.
+ */
+final class MessagePage {
+    final List<Message> messages;
+    final boolean more;
+
+    MessagePage(List<Message> messages, boolean more){
+        this.messages = Collections.unmodifiableList(messages);
+        this.more = more;
+    }
+
+    Message last(){
+        return messages.isEmpty() ? null : messages.get(messages.size() - 1);
+    }
+}//end MessagePage
+
+/*
+ * Accounts, profiles and user search.  Like the other services it is a
+ * plain request/response API with no console I/O: the menus are one
+ * client, server sessions and benchmarks are others.
+ */
+class ProfileService {
+    // cleared the first time pg_trgm turns out not to be installed
+    private static volatile boolean trigramSearch = true;
+
+    private final ProfNetwork esql;
+
+    ProfileService(ProfNetwork esql){
+        this.esql = esql;
+    }
+
+    void createUser(String login, String password, String email, String name, String birthdate) throws SQLException {
+        String query = "INSERT INTO USR (userId, password, email,name,dateOfBirth) VALUES (?,?,?,?,CAST(? AS date))";
+        esql.executeUpdate(query, login, password, email, name, birthdate);
+    }
+
+    /** Returns the userId on a matching login, null otherwise. */
+    String logIn(String login, String password) throws SQLException {
+        String query = "SELECT 1 FROM USR WHERE userId = ? AND password = ?";
+        return esql.exists(query, login, password) ? login : null;
+    }
+
+    void updatePassword(String userId, String password) throws SQLException {
+        esql.executeUpdate("UPDATE usr set password = ? WHERE userId = ?", password, userId);
+        esql.profiles().invalidate(userId);
+    }
+
+    /** userId's profile as seen by viewer, or null if there is no such user. */
+    Profile profile(String viewer, String userId) throws SQLException {
+        return esql.profiles().get(esql, viewer, userId);
+    }
+
+    /** Users whose name is exactly fullName. */
+    List<String> findByName(String fullName) throws SQLException {
+        final List<String> result = new ArrayList<String>();
+        esql.forEachRow("SELECT userId FROM usr WHERE name = ?", new RowHandler(){
+            public boolean row(Row row) throws SQLException {
+                result.add(row.getId(1));
+                return true;
+            }
+        }, fullName);
+        return result;
+    }
+
+    /**
+     * Case-insensitive prefix match on name, userId or email, plus
+     * pg_trgm similarity on the name so typos still find people.  Exact
+     * userId hits rank first, then prefix hits, each ordered by name
+     * similarity; see usr_*_prefix and usr_name_trgm in create_index.sql.
+     */
+    List<UserSummary> search(String term, int limit, int offset) throws SQLException {
+        final List<UserSummary> result = new ArrayList<UserSummary>();
+        String q = term.trim().toLowerCase();
+        String prefix = q.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+        RowHandler collect = new RowHandler(){
+            public boolean row(Row row) throws SQLException {
+                String name = row.getString(2);
+                result.add(new UserSummary(row.getId(1), name == null ? "" : name.trim()));
+                return true;
+            }
+        };
+        if (trigramSearch){
+            String query = "SELECT userId, name FROM usr "
+                    + "WHERE lower(name) LIKE ? OR lower(userId) LIKE ? OR lower(email) LIKE ? OR lower(name) % ? "
+                    + "ORDER BY (lower(userId) = ?) DESC, (lower(name) LIKE ? OR lower(userId) LIKE ? OR lower(email) LIKE ?) DESC, "
+                    + "similarity(lower(name), ?) DESC, userId LIMIT ? OFFSET ?";
+            try{
+                esql.forEachRow(query, collect, prefix, prefix, prefix, q, q, prefix, prefix, prefix, q, limit, offset);
+                return result;
+            }catch (SQLException e){
+                // 42883: undefined function/operator, i.e. no pg_trgm
+                if (!"42883".equals(e.getSQLState()))
+                    throw e;
+                trigramSearch = false;
+                System.err.println("pg_trgm is not installed; fuzzy matching is off.");
+            }
+        }
+        String query = "SELECT userId, name FROM usr "
+                + "WHERE lower(name) LIKE ? OR lower(userId) LIKE ? OR lower(email) LIKE ? "
+                + "ORDER BY (lower(userId) = ?) DESC, userId LIMIT ? OFFSET ?";
+        esql.forEachRow(query, collect, prefix, prefix, prefix, q, limit, offset);
+        return result;
+    }
+
+    /** Work/education search; see ProfileIndex.search for the syntax. */
+    List<String> searchProfiles(String query) throws SQLException {
+        return esql.profileIndex().search(query);
+    }
+}//end ProfileService
+
+/*
+ * Connections, requests and everything derived from the connection
+ * graph.  Reads use the in-memory graph when it is loaded and fall back
+ * to connection_usr otherwise; writes go to the table and then the graph.
+ */
+class ConnectionService {
+    // well connected users (more than this many connections) ...
+    static final int OPEN_REQUEST_LIMIT = 4;
+    // ... may only send requests this many hops out
+    static final int REQUEST_DEPTH = (int) ProfNetwork.setting("requestDepth", 3);
+
+    private static final String CONNECTIONS = "SELECT connectionId FROM connection_usr WHERE userId = ? AND status = 'Accept' UNION SELECT userId FROM connection_usr WHERE connectionId = ? AND status = 'Accept' ORDER BY 1";
+
+    private final ProfNetwork esql;
+
+    ConnectionService(ProfNetwork esql){
+        this.esql = esql;
+    }
+
+    /**
+     * Accepted connections of a user in either direction, ordered by
+     * userId and optionally leaving one user out.
+     */
+    List<String> connections(String user, final String exclude) throws SQLException {
+        ConnectionGraph graph = esql.graph();
+        if (graph != null)
+            return graph.connectionNames(user, exclude);
+        final List<String> result = new ArrayList<String>();
+        esql.streamRows(CONNECTIONS, new RowHandler(){
+            public boolean row(Row row) throws SQLException {
+                String id = row.getId(1);
+                if (exclude == null || !id.equals(exclude.trim()))
+                    result.add(id);
+                return true;
+            }
+        }, user, user);
+        return result;
+    }
+
+    /**
+     * Streams the same list to handler (column 1 is the userId) without
+     * keeping it; with the graph off nothing is held in memory.
+     */
+    int eachConnection(String user, RowHandler handler) throws SQLException {
+        return esql.streamRows(CONNECTIONS, handler, user, user);
+    }
+
+    /** Whether connections() is answered from memory. */
+    boolean inMemory(){
+        return esql.graph() != null;
+    }
+
+    /** The index'th (0-based) entry of connections(user, null), or null. */
+    String connectionAt(String user, int index) throws SQLException {
+        if (index < 0)
+            return null;
+        ConnectionGraph graph = esql.graph();
+        if (graph != null){
+            List<String> listed = graph.connectionNames(user, null);
+            return index < listed.size() ? listed.get(index) : null;
+        }
+        return esql.executeQueryForString(CONNECTIONS + " LIMIT 1 OFFSET ?", user, user, index);
+    }
+
+    long connectionCount(String user) throws SQLException {
+        ConnectionGraph graph = esql.graph();
+        if (graph != null){
+            int id = graph.id(user);
+            return id < 0 ? 0 : graph.degree(id);
+        }
+        return esql.count("SELECT 1 FROM connection_usr WHERE userid = ? AND status = 'Accept' OR connectionId = ? AND status = 'Accept'", user, user);
+    }
+
+    /** Users with a pending request to user. */
+    List<String> pendingRequests(String user) throws SQLException {
+        final List<String> result = new ArrayList<String>();
+        esql.forEachRow("SELECT userid FROM connection_usr WHERE connectionId = ? AND status = 'Request'", new RowHandler(){
+            public boolean row(Row row) throws SQLException {
+                result.add(row.getId(1));
+                return true;
+            }
+        }, user);
+        return result;
+    }
+
+    /** Accepts requester's request to user; false if there was none. */
+    boolean accept(String requester, String user) throws SQLException {
+        if (esql.executeUpdate("UPDATE connection_usr SET status = 'Accept' WHERE userid = ? AND connectionId = ? AND status = 'Request'", requester, user) == 0)
+            return false;
+        ConnectionGraph graph = esql.graph();
+        if (graph != null)
+            graph.accept(requester, user);
+        return true;
+    }
+
+    /** Rejects requester's request to user; false if there was none. */
+    boolean reject(String requester, String user) throws SQLException {
+        if (esql.executeUpdate("UPDATE connection_usr SET status = 'Reject' WHERE userid = ? AND connectionId = ? AND status = 'Request'", requester, user) == 0)
+            return false;
+        ConnectionGraph graph = esql.graph();
+        if (graph != null)
+            graph.reject(requester, user);
+        return true;
+    }
+
+    /**
+     * Whether from may send to a request: anyone with a few connections
+     * may; after that only users within REQUEST_DEPTH hops.
+     */
+    boolean mayRequest(String from, String to) throws SQLException {
+        if (connectionCount(from) <= OPEN_REQUEST_LIMIT)
+            return true;
+        return degree(from, to, REQUEST_DEPTH) > 0;
+    }
+
+    /** Sends a request if mayRequest allows it; returns whether it did. */
+    boolean request(String from, String to) throws SQLException {
+        if (!mayRequest(from, to))
+            return false;
+        esql.executeUpdate("INSERT INTO connection_usr (userId, connectionId, status) VALUES(?, ?, 'Request')", from, to);
+        ConnectionGraph graph = esql.graph();
+        if (graph != null)
+            graph.request(from, to);
+        return true;
+    }
+
+    /**
+     * Number of hops between two users over accepted connections (1 for a
+     * direct connection), 0 for the same user, or -1 when they are more
+     * than maxDepth hops apart.  Uses a bidirectional BFS on the in-memory
+     * graph; without it a single SQL probe answers up to three hops.
+     */
+    int degree(String from, String to, int maxDepth) throws SQLException {
+        if (from.trim().equals(to.trim()))
+            return 0;
+        ConnectionGraph graph = esql.graph();
+        if (graph != null)
+            return graph.distance(from, to, maxDepth);
+        String query = "WITH e AS (SELECT userId AS a, connectionId AS b FROM connection_usr WHERE status = 'Accept' UNION ALL SELECT connectionId, userId FROM connection_usr WHERE status = 'Accept') "
+                + "SELECT 1 FROM e WHERE e.a = ? AND e.b = ? "
+                + "UNION ALL SELECT 2 FROM e e1 JOIN e e2 ON e2.a = e1.b WHERE e1.a = ? AND e2.b = ? "
+                + "UNION ALL SELECT 3 FROM e e1 JOIN e e2 ON e2.a = e1.b JOIN e e3 ON e3.a = e2.b WHERE e1.a = ? AND e3.b = ? "
+                + "ORDER BY 1 LIMIT 1";
+        String hops = esql.executeQueryForString(query, from, to, from, to, from, to);
+        int degree = hops == null ? -1 : Integer.parseInt(hops);
+        return degree > maxDepth ? -1 : degree;
+    }
+
+    /** Connections a and b have in common, ordered by userId. */
+    List<String> mutual(String a, String b) throws SQLException {
+        return esql.mutuals().between(a, b);
+    }
+
+    /** Up to k "people you may know" suggestions, best first. */
+    List<Recommendation> suggestions(String user, int k) throws SQLException {
+        return esql.recommender().recommend(user, k);
+    }
+}//end ConnectionService
+
+/*
+ * Sending, listing, reading and deleting messages.  deleteStatus records
+ * who has deleted a message (1 sender, 2 receiver); a message is unread
+ * while it is 'Delivered' and the receiver has not deleted it.
+ */
+class MessageService {
+    enum Box { NEW, INBOX, SENT }
+
+    // cleared the first time unread_count turns out not to exist
+    private static volatile boolean unreadTable = true;
+
+    private static final String INSERT = "INSERT INTO message (senderId, receiverId, contents, sendTime, deleteStatus, status) VALUES(?, ?, ?, CURRENT_TIMESTAMP, 0, 'Delivered')";
+
+    private final ProfNetwork esql;
+
+    MessageService(ProfNetwork esql){
+        this.esql = esql;
+    }
+
+    /**
+     * Unread messages for a user: a primary key lookup in unread_count,
+     * which unread_trigger keeps current (see trigger.sql).  Falls back
+     * to counting MESSAGE when the trigger has not been installed.
+     */
+    long unreadCount(String user) throws SQLException {
+        if (unreadTable){
+            try{
+                String unread = esql.executeQueryForString("SELECT unread FROM unread_count WHERE userId = ?", user);
+                return unread == null ? 0 : Long.parseLong(unread);
+            }catch (SQLException e){
+                // 42P01: undefined table
+                if (!"42P01".equals(e.getSQLState()))
+                    throw e;
+                unreadTable = false;
+            }
+        }
+        return esql.count("SELECT 1 FROM message WHERE receiverId = ? AND status = 'Delivered' AND deleteStatus IN (0, 1)", user);
+    }
+
+    /**
+     * Sends one message.  With the write-behind dispatcher on, the result
+     * has msgId 0, no sendTime and status 'Sent' until its batch commits
+     * (a failure is reported later by failures()); otherwise it is
+     * inserted now and comes back 'Delivered' with its id.
+     */
+    Message send(String from, String to, String contents) throws SQLException {
+        MessageDispatcher dispatcher = esql.dispatcher();
+        if (dispatcher != null){
+            MessageDispatcher.Outgoing queued = dispatcher.send(from, to, contents);
+            if (queued != null)
+                return new Message(0, queued.senderId, queued.receiverId, contents, null, queued.status());
+        }
+        // msgId comes from the msgId_seq column default (each session
+        // reserves a block of values), so MESSAGE is never counted or locked
+        String id = esql.executeQueryForString(INSERT + " RETURNING msgId", from, to, contents);
+        return new Message(Integer.parseInt(id), from.trim(), to.trim(), contents, null, MessageDispatcher.DELIVERED);
+    }
+
+    /**
+     * Queued messages from user that could not be delivered since the
+     * last call; each is returned once.
+     */
+    List<MessageDispatcher.Outgoing> failures(String user){
+        MessageDispatcher dispatcher = esql.dispatcher();
+        if (dispatcher == null)
+            return Collections.<MessageDispatcher.Outgoing>emptyList();
+        return dispatcher.failures(user);
+    }
+
+    /**
+     * Sends the same message to every accepted connection of from in one
+     * JDBC batch and transaction; returns how many were sent.
+     */
+    int broadcast(String from, String contents) throws SQLException {
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (String receiver : esql.connectionService().connections(from, null)){
+            rows.add(new Object[]{ from, receiver, contents });
+        }
+        return esql.executeBatch(INSERT, rows);
+    }
+
+    /**
+     * One page of a mailbox, newest first, starting after (beforeTime,
+     * beforeId) or at the top when beforeTime is null.  Pages are
+     * addressed by the last row shown (keyset pagination) rather than an
+     * OFFSET, so the message_inbox (new), message_received (inbox) and
+     * message_sent indexes take every page straight to its first row.
+     * contents is not fetched.
+     */
+    MessagePage mailbox(final String user, final Box box, Timestamp beforeTime, int beforeId, int limit) throws SQLException {
+        String query;
+        if (box == Box.SENT)
+            query = "SELECT msgId, senderId, receiverId, sendTime, status FROM message WHERE senderId = ? AND deleteStatus IN (0, 2)";
+        else if (box == Box.NEW)
+            query = "SELECT msgId, senderId, receiverId, sendTime, status FROM message WHERE receiverId = ? AND status = 'Delivered' AND deleteStatus IN (0, 1)";
+        else
+            query = "SELECT msgId, senderId, receiverId, sendTime, status FROM message WHERE receiverId = ? AND status IN ('Delivered', 'Read') AND deleteStatus IN (0, 1)";
+        String order = " ORDER BY sendTime DESC, msgId DESC LIMIT ?";
+        final List<Message> messages = new ArrayList<Message>();
+        RowHandler collect = new RowHandler(){
+            public boolean row(Row row) throws SQLException {
+                messages.add(new Message(row.getInt(1), row.getId(2), row.getId(3), null, row.getTimestamp(4), row.getId(5)));
+                return true;
+            }
+        };
+        // one extra row tells us whether there is another page
+        if (beforeTime == null)
+            esql.forEachRow(query + order, collect, user, limit + 1);
+        else
+            esql.forEachRow(query + " AND (sendTime, msgId) < (?, ?)" + order, collect, user, beforeTime, beforeId, limit + 1);
+        return page(messages, limit);
+    }
+
+    /**
+     * The receiver's messages among ids, marking the delivered ones read
+     * in the same statement.
+     */
+    List<Message> read(final String user, int[] ids) throws SQLException {
+        String query = "WITH picked AS (SELECT msgId, senderId, contents, sendTime, status FROM message WHERE receiverId = ? AND msgId = ANY (CAST(? AS integer[])) AND deleteStatus IN (0, 1)), "
+                + "marked AS (UPDATE message m SET status = 'Read' FROM picked p WHERE m.msgId = p.msgId AND p.status = 'Delivered' RETURNING m.msgId) "
+                + "SELECT msgId, senderId, contents, sendTime FROM picked ORDER BY msgId";
+        final List<Message> result = new ArrayList<Message>();
+        esql.forEachRow(query, new RowHandler(){
+            public boolean row(Row row) throws SQLException {
+                result.add(new Message(row.getInt(1), row.getId(2), user.trim(), row.getId(3), row.getTimestamp(4), "Read"));
+                return true;
+            }
+        }, user, idArray(ids));
+        return result;
+    }
+
+    /** A message user sent, or null. */
+    Message sent(final String user, int msgId) throws SQLException {
+        final Message[] found = new Message[1];
+        esql.forEachRow("SELECT msgId, receiverId, contents, sendTime, status FROM message WHERE msgId = ? AND senderId = ?", new RowHandler(){
+            public boolean row(Row row) throws SQLException {
+                found[0] = new Message(row.getInt(1), user.trim(), row.getId(2), row.getId(3), row.getTimestamp(4), row.getId(5));
+                return false;
+            }
+        }, msgId, user);
+        return found[0];
+    }
+
+    /**
+     * Marks the receiver's delivered messages among ids as read, or all
+     * of them when ids is null.  Returns how many changed.
+     */
+    int markRead(String user, int[] ids) throws SQLException {
+        String query = "UPDATE message SET status = 'Read' WHERE receiverId = ? AND status = 'Delivered' AND deleteStatus IN (0, 1)";
+        if (ids == null)
+            return esql.executeUpdate(query, user);
+        return esql.executeUpdate(query + " AND msgId = ANY (CAST(? AS integer[]))", user, idArray(ids));
+    }
+
+    /**
+     * Deletes messages for one side in one statement: the first side to
+     * delete only hides a message and the second removes the row.  The
+     * rows are locked up front so a concurrent delete from the other side
+     * cannot slip in between the read and the write.  Returns how many of
+     * ids were deleted for user.
+     */
+    int delete(String user, int[] ids, boolean asSender) throws SQLException {
+        String owner = asSender ? "senderId" : "receiverId";
+        int mine = asSender ? 1 : 2;
+        int theirs = asSender ? 2 : 1;
+        String query = "WITH target AS (SELECT msgId, deleteStatus FROM message WHERE " + owner + " = ? AND msgId = ANY (CAST(? AS integer[])) AND deleteStatus IN (0, " + theirs + ") FOR UPDATE), "
+                + "gone AS (DELETE FROM message m USING target t WHERE m.msgId = t.msgId AND t.deleteStatus = " + theirs + " RETURNING m.msgId), "
+                + "hidden AS (UPDATE message m SET deleteStatus = " + mine + " FROM target t WHERE m.msgId = t.msgId AND t.deleteStatus = 0 RETURNING m.msgId) "
+                + "SELECT (SELECT COUNT(*) FROM gone) + (SELECT COUNT(*) FROM hidden)";
+        String deleted = esql.executeQueryForString(query, user, idArray(ids));
+        return deleted == null ? 0 : Integer.parseInt(deleted);
+    }
+
+    /**
+     * A window of the thread between user and other, newest first, ending
+     * before (beforeTime, beforeId) or at the latest message when
+     * beforeTime is null.  Messages user deleted are left out, and the
+     * ones shown to user are marked read by the same statement.  The pair
+     * predicate matches the message_pair index, so the window is a
+     * backward index range scan however long the thread is.
+     */
+    MessagePage conversation(String user, String other, Timestamp beforeTime, int beforeId, int limit) throws SQLException {
+        String query = "WITH shown AS (SELECT msgId, senderId, receiverId, contents, sendTime, status FROM message "
+                + "WHERE LEAST(senderId, receiverId) = LEAST(CAST(? AS char(30)), CAST(? AS char(30))) "
+                + "AND GREATEST(senderId, receiverId) = GREATEST(CAST(? AS char(30)), CAST(? AS char(30))) "
+                + "AND NOT (senderId = ? AND deleteStatus = 1) AND NOT (receiverId = ? AND deleteStatus = 2)"
+                + (beforeTime == null ? "" : " AND (sendTime, msgId) < (?, ?)")
+                + " ORDER BY sendTime DESC, msgId DESC LIMIT ?), "
+                + "marked AS (UPDATE message m SET status = 'Read' FROM shown s WHERE m.msgId = s.msgId AND s.receiverId = ? AND s.status = 'Delivered' RETURNING m.msgId) "
+                + "SELECT msgId, senderId, receiverId, contents, sendTime, status FROM shown ORDER BY sendTime DESC, msgId DESC";
+        final List<Message> messages = new ArrayList<Message>();
+        RowHandler collect = new RowHandler(){
+            public boolean row(Row row) throws SQLException {
+                messages.add(new Message(row.getInt(1), row.getId(2), row.getId(3), row.getId(4), row.getTimestamp(5), row.getId(6)));
+                return true;
+            }
+        };
+        // no look-ahead row here: every fetched row gets marked read
+        if (beforeTime == null)
+            esql.forEachRow(query, collect, user, other, user, other, user, user, limit, user);
+        else
+            esql.forEachRow(query, collect, user, other, user, other, user, user, beforeTime, beforeId, limit, user);
+        return new MessagePage(messages, messages.size() == limit);
+    }
+
+    private static MessagePage page(List<Message> messages, int limit){
+        boolean more = messages.size() > limit;
+        if (more)
+            messages.remove(messages.size() - 1);
+        return new MessagePage(messages, more);
+    }
+
+    /*
+     * Postgres array literal for CAST(? AS integer[]); the driver has no
+     * setArray for plain ints.
+     */
+    static String idArray(int[] ids){
+        StringBuilder text = new StringBuilder("{");
+        for (int i = 0; i < ids.length; i++){
+            if (i > 0) text.append(',');
+            text.append(ids[i]);
+        }
+        return text.append('}').toString();
+    }
+}//end MessageService
+
+/*
+ * Latency histogram with fixed log-linear buckets: exact below 16us, then
+ * 16 buckets per power of two (at most 6.25% off) up to ~2^40us.  Lock
+ * free, so the hot path is an array increment; reads are a snapshot that
+ * may lag a concurrent record by one value.
+ */
+class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = SUB * 38;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    void record(long micros){
+        if (micros < 0)
+            micros = 0;
+        counts.incrementAndGet(Math.min(index(micros), BUCKETS - 1));
+        count.incrementAndGet();
+        sumMicros.addAndGet(micros);
+        long max;
+        while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)){
+            // retry
+        }
+    }
+
+    long count(){
+        return count.get();
+    }
+
+    long sumMicros(){
+        return sumMicros.get();
+    }
+
+    long maxMicros(){
+        return maxMicros.get();
+    }
+
+    /** Upper edge of the bucket holding the p'th percentile (0-100), in us. */
+    long percentile(double p){
+        long total = count.get();
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * p / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++){
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(upper(i), maxMicros.get());
+        }
+        return maxMicros.get();
+    }
+
+    private static int index(long v){
+        if (v < SUB)
+            return (int) v;
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        return (shift + 1) * SUB + (int) ((v >> shift) & (SUB - 1));
+    }
+
+    private static long upper(int i){
+        if (i < SUB)
+            return i;
+        int shift = i / SUB - 1;
+        return ((long) (SUB + i % SUB) << shift) + (1L << shift) - 1;
+    }
+}//end LatencyHistogram
+
+/*
+ * Per-statement timing for the JDBC primitives (forEachRow and everything
+ * built on it, executeUpdate, executeBatch).  Statements are grouped by
+ * shape: the SQL with literals replaced by ? and whitespace collapsed, so
+ * one query run with different values is one entry.  Each shape keeps a
+ * latency histogram and call, row, byte and error counters.  Times run
+ * from holding a connection until the last row is consumed, so waits in
+ * the pool show up in the pool stats, not here.
+ *
+ * Statements slower than metrics.slowMs (500) are logged with their shape
+ * to metrics.slowLog, or else the console.  The numbers can be read with
+ * dump(), or exported in the Prometheus text format: every
+ * metrics.fileIntervalMs (15000) to metrics.file, and on
+ * http://127.0.0.1:<metrics.port>/metrics (with /dump for the plain
+ * report).  -Dprofnetwork.metrics=false turns all of it off.
+ */
+class QueryMetrics {
+    private static final long SLOW_MS = ProfNetwork.setting("metrics.slowMs", 500);
+    // shapes tracked before the rest are pooled under OTHER
+    private static final int MAX_SHAPES = (int) ProfNetwork.setting("metrics.maxShapes", 1000);
+    // raw statement texts whose shape is remembered
+    private static final int MAX_TEXTS = 10000;
+    private static final long FILE_INTERVAL_MS = ProfNetwork.setting("metrics.fileIntervalMs", 15000);
+    private static final String OTHER = "(other)";
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+    private static final String[] QUANTILES = { "0.5", "0.9", "0.99", "0.999" };
+
+    /* Everything known about one statement shape. */
+    static final class Shape {
+        final String sql;
+        final String id;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong slow = new AtomicLong();
+        volatile String lastError;
+
+        Shape(String sql){
+            this.sql = sql;
+            this.id = String.format("%08x", sql.hashCode());
+        }
+    }//end Shape
+
+    private final boolean enabled = !"false".equals(System.getProperty("profnetwork.metrics"));
+    private final ConcurrentHashMap<String, Shape> byText = new ConcurrentHashMap<String, Shape>();
+    private final ConcurrentHashMap<String, Shape> shapes = new ConcurrentHashMap<String, Shape>();
+    private final long started = System.currentTimeMillis();
+    // captured before server mode reroutes System.err to the sessions
+    private final PrintStream console = System.err;
+    private PrintStream slowLog;
+    private ScheduledExecutorService exporter;
+    private HttpServer httpServer;
+
+    boolean enabled(){
+        return enabled;
+    }
+
+    /**
+     * Records a finished statement.
+     *
+     * @param sql the statement as passed to the JDBC primitive
+     * @param startNanos System.nanoTime() when it was issued
+     * @param rows rows returned or affected
+     * @param bytes bytes of column values read from the result
+     */
+    void record(String sql, long startNanos, long rows, long bytes){
+        if (!enabled)
+            return;
+        long nanos = System.nanoTime() - startNanos;
+        Shape shape = shape(sql);
+        shape.latency.record(nanos / 1000);
+        shape.rows.addAndGet(rows);
+        shape.bytes.addAndGet(bytes);
+        if (nanos >= SLOW_MS * 1000000L){
+            shape.slow.incrementAndGet();
+            logSlow(String.format("slow query: %.1fms, %d rows: %s", nanos / 1e6, rows, shape.sql));
+        }
+    }
+
+    /** Records a statement that threw; its time is not in the histogram. */
+    void failed(String sql, SQLException e){
+        if (!enabled)
+            return;
+        Shape shape = shape(sql);
+        shape.errors.incrementAndGet();
+        shape.lastError = e.getSQLState() == null ? e.getMessage() : e.getSQLState() + " " + e.getMessage();
+    }
+
+    private Shape shape(String sql){
+        Shape shape = byText.get(sql);
+        if (shape != null)
+            return shape;
+        String normalized = normalize(sql);
+        shape = shapes.get(normalized);
+        if (shape == null){
+            if (shapes.size() >= MAX_SHAPES)
+                normalized = OTHER;
+            Shape fresh = new Shape(normalized);
+            shape = shapes.putIfAbsent(normalized, fresh);
+            if (shape == null)
+                shape = fresh;
+        }
+        if (byText.size() < MAX_TEXTS)
+            byText.put(sql, shape);
+        return shape;
+    }
+
+    /**
+     * The shape of a statement: whitespace runs become one space, quoted
+     * strings and numbers become ?, and a list of ?s becomes one.
+     */
+    static String normalize(String sql){
+        StringBuilder out = new StringBuilder(sql.length());
+        int n = sql.length();
+        for (int i = 0; i < n; i++){
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)){
+                while (i + 1 < n && Character.isWhitespace(sql.charAt(i + 1)))
+                    i++;
+                if (out.length() > 0)
+                    out.append(' ');
+            }else if (c == '\''){
+                // '' inside a literal is an escaped quote
+                for (i++; i < n; i++){
+                    if (sql.charAt(i) == '\''){
+                        if (i + 1 < n && sql.charAt(i + 1) == '\'')
+                            i++;
+                        else
+                            break;
+                    }
+                }
+                out.append('?');
+            }else if (Character.isDigit(c) && (out.length() == 0 || !isWordChar(out.charAt(out.length() - 1)))){
+                while (i + 1 < n && (Character.isDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '.'))
+                    i++;
+                out.append('?');
+            }else{
+                out.append(c);
+            }
+            // "?, ?, ?" -> "?"
+            int len = out.length();
+            if (len >= 4 && out.charAt(len - 1) == '?' && out.charAt(len - 2) == ' '
+                    && out.charAt(len - 3) == ',' && out.charAt(len - 4) == '?')
+                out.setLength(len - 3);
+        }
+        int end = out.length();
+        while (end > 0 && (out.charAt(end - 1) == ' ' || out.charAt(end - 1) == ';'))
+            end--;
+        out.setLength(end);
+        return out.toString();
+    }
+
+    private static boolean isWordChar(char c){
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+
+    private void logSlow(String line){
+        PrintStream out;
+        synchronized (this){
+            out = slowLog != null ? slowLog : console;
+        }
+        out.println(line);
+    }
+
+    /**
+     * A plain report of every shape, the most total time first.
+     */
+    String dump(){
+        List<Shape> list = sorted();
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("queries: shapes=%d slowMs=%d uptime=%.0fs%n",
+                list.size(), SLOW_MS, (System.currentTimeMillis() - started) / 1000.0));
+        for (Shape s : list){
+            LatencyHistogram h = s.latency;
+            long calls = h.count();
+            out.append(String.format("%s calls=%d total=%.1fms avg=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms rows=%d bytes=%d errors=%d slow=%d%n",
+                    s.id, calls, h.sumMicros() / 1000.0, calls == 0 ? 0.0 : h.sumMicros() / 1000.0 / calls,
+                    h.percentile(50) / 1000.0, h.percentile(90) / 1000.0, h.percentile(99) / 1000.0,
+                    h.percentile(99.9) / 1000.0, h.maxMicros() / 1000.0,
+                    s.rows.get(), s.bytes.get(), s.errors.get(), s.slow.get()));
+            out.append("  ").append(s.sql).append('\n');
+            if (s.lastError != null)
+                out.append("  last error: ").append(s.lastError).append('\n');
+        }
+        return out.toString();
+    }//end dump
+
+    /**
+     * Every shape in the Prometheus text exposition format (0.0.4):
+     * latency as a summary in seconds, the rest as counters, labelled by
+     * shape id and normalized SQL.
+     */
+    String prometheus(){
+        List<Shape> list = sorted();
+        StringBuilder out = new StringBuilder();
+        out.append("# HELP profnetwork_query_duration_seconds Statement latency by query shape.\n");
+        out.append("# TYPE profnetwork_query_duration_seconds summary\n");
+        for (Shape s : list){
+            String labels = "shape=\"" + s.id + "\",query=\"" + escape(s.sql) + "\"";
+            for (int q = 0; q < QUANTILES.length; q++){
+                out.append("profnetwork_query_duration_seconds{").append(labels)
+                        .append(",quantile=\"").append(QUANTILES[q]).append("\"} ")
+                        .append(s.latency.percentile(PERCENTILES[q]) / 1e6).append('\n');
+            }
+            out.append("profnetwork_query_duration_seconds_sum{").append(labels).append("} ")
+                    .append(s.latency.sumMicros() / 1e6).append('\n');
+            out.append("profnetwork_query_duration_seconds_count{").append(labels).append("} ")
+                    .append(s.latency.count()).append('\n');
+        }
+        counter(out, list, "rows", "Rows returned or affected by query shape.");
+        counter(out, list, "bytes", "Bytes of column values read by query shape.");
+        counter(out, list, "errors", "Failed statements by query shape.");
+        counter(out, list, "slow", "Statements over metrics.slowMs by query shape.");
+        return out.toString();
+    }//end prometheus
+
+    private static void counter(StringBuilder out, List<Shape> list, String name, String help){
+        String metric = "profnetwork_query_" + name + "_total";
+        out.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(metric).append(" counter\n");
+        for (Shape s : list){
+            AtomicLong value = name.equals("rows") ? s.rows : name.equals("bytes") ? s.bytes
+                    : name.equals("errors") ? s.errors : s.slow;
+            out.append(metric).append("{shape=\"").append(s.id).append("\",query=\"")
+                    .append(escape(s.sql)).append("\"} ").append(value.get()).append('\n');
+        }
+    }
+
+    private static String escape(String value){
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private List<Shape> sorted(){
+        List<Shape> list = new ArrayList<Shape>(shapes.values());
+        Collections.sort(list, new Comparator<Shape>(){
+            public int compare(Shape a, Shape b){
+                long x = a.latency.sumMicros(), y = b.latency.sumMicros();
+                return x < y ? 1 : x > y ? -1 : a.sql.compareTo(b.sql);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Starts whatever the metrics.* properties ask for: the slow query
+     * log file, the periodic Prometheus file and the HTTP endpoint.
+     */
+    synchronized void start(){
+        if (!enabled)
+            return;
+        String slowFile = System.getProperty("profnetwork.metrics.slowLog");
+        if (slowFile != null && slowLog == null){
+            try{
+                slowLog = new PrintStream(new FileOutputStream(slowFile, true), true, "UTF-8");
+            }catch (IOException e){
+                console.println("Cannot open slow query log " + slowFile + ": " + e.getMessage());
+            }
+        }
+        final String file = System.getProperty("profnetwork.metrics.file");
+        if (file != null && exporter == null){
+            exporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+                public Thread newThread(Runnable r){
+                    Thread t = new Thread(r, "profnetwork-metrics");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            exporter.scheduleWithFixedDelay(new Runnable(){
+                public void run(){
+                    writeFile(file);
+                }
+            }, FILE_INTERVAL_MS, FILE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+        int port = (int) ProfNetwork.setting("metrics.port", 0);
+        if (port > 0 && httpServer == null)
+            httpServer = serve(port);
+    }//end start
+
+    /** Writes the Prometheus text to file, replacing it in one step. */
+    void writeFile(String file){
+        try{
+            Path target = Paths.get(file);
+            Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+            Files.write(temp, prometheus().getBytes("UTF-8"));
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }catch (IOException e){
+            console.println("Cannot write metrics to " + file + ": " + e.getMessage());
+        }
+    }
+
+    /*
+     * /metrics and /dump on 127.0.0.1:port, through the JDK's built-in
+     * HTTP server on a single daemon thread.
+     */
+    private HttpServer serve(int port){
+        try{
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 16);
+            server.createContext("/", new HttpHandler(){
+                public void handle(HttpExchange exchange) throws IOException {
+                    String path = exchange.getRequestURI().getPath();
+                    boolean text = path.equals("/dump");
+                    byte[] body = (text ? dump() : prometheus()).getBytes("UTF-8");
+                    exchange.getResponseHeaders().set("Content-Type",
+                            text ? "text/plain; charset=utf-8" : "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    try{
+                        out.write(body);
+                    }finally{
+                        out.close();
+                    }
+                }
+            });
+            server.setExecutor(Executors.newSingleThreadExecutor(new ThreadFactory(){
+                public Thread newThread(Runnable r){
+                    Thread t = new Thread(r, "profnetwork-metrics-http");
+                    t.setDaemon(true);
+                    return t;
+                }
+            }));
+            server.start();
+            console.println("Metrics on http://127.0.0.1:" + port + "/metrics");
+            return server;
+        }catch (IOException e){
+            console.println("Cannot serve metrics on port " + port + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** Stops the exporters, writing the file one last time. */
+    synchronized void close(){
+        if (exporter != null){
+            exporter.shutdown();
+            writeFile(System.getProperty("profnetwork.metrics.file"));
+            exporter = null;
+        }
+        if (httpServer != null){
+            httpServer.stop(0);
+            httpServer = null;
+        }
+        if (slowLog != null){
+            slowLog.close();
+            slowLog = null;
+        }
+    }
+}//end QueryMetrics
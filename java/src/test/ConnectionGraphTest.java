@@ -0,0 +1,160 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/*
+ * ConnectionGraph against plain adjacency sets.  Accepting more than 1024
+ * edges folds the overlay into new CSR arrays, so the larger runs check
+ * lookups across several compactions as well as from the overlay alone.
+ */
+public class ConnectionGraphTest {
+
+    @Test
+    public void overlayMatchesAdjacencySets(){
+        Random random = new Random(1);
+        ConnectionGraph graph = new ConnectionGraph();
+        Map<String, Set<String>> reference = new HashMap<String, Set<String>>();
+        // below the compaction threshold: every edge stays in the overlay
+        for (int i = 0; i < 800; i++){
+            accept(graph, reference, "u" + random.nextInt(200), "u" + random.nextInt(200));
+        }
+        assertSame(reference, graph);
+    }
+
+    @Test
+    public void compactionKeepsEveryEdge(){
+        Random random = new Random(2);
+        ConnectionGraph graph = new ConnectionGraph();
+        Map<String, Set<String>> reference = new HashMap<String, Set<String>>();
+        for (int i = 0; i < 6000; i++){
+            accept(graph, reference, "u" + random.nextInt(300), "u" + random.nextInt(300));
+            if (i % 1500 == 0)
+                assertSame(reference, graph);
+        }
+        assertSame(reference, graph);
+    }
+
+    @Test
+    public void distanceMatchesBreadthFirstSearch(){
+        Random random = new Random(3);
+        ConnectionGraph graph = new ConnectionGraph();
+        Map<String, Set<String>> reference = new HashMap<String, Set<String>>();
+        // sparse, so pairs are spread over many distances; the 1200
+        // edges take it through one compaction
+        for (int i = 0; i < 1200; i++){
+            accept(graph, reference, "u" + random.nextInt(1000), "u" + random.nextInt(1000));
+            if (i == 600 || i == 1199){
+                for (int pair = 0; pair < 2000; pair++){
+                    String from = "u" + random.nextInt(1000);
+                    String to = "u" + random.nextInt(1000);
+                    for (int maxDepth : new int[]{ 1, 3, 6, 50 }){
+                        assertEquals(from + " -> " + to + " within " + maxDepth,
+                                bfs(reference, from, to, maxDepth), graph.distance(from, to, maxDepth));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void requestsAreDirectedAndClearedOnAccept(){
+        ConnectionGraph graph = new ConnectionGraph();
+        graph.request("alice", "bob");
+        assertEquals(ConnectionGraph.REQUEST, graph.requestStatus("alice", "bob"));
+        assertEquals(ConnectionGraph.NONE, graph.requestStatus("bob", "alice"));
+        graph.reject("alice", "bob");
+        assertEquals(ConnectionGraph.REJECT, graph.requestStatus("alice", "bob"));
+        graph.request("carol", "bob");
+        graph.accept("carol", "bob");
+        assertEquals(ConnectionGraph.NONE, graph.requestStatus("carol", "bob"));
+        assertTrue(graph.connected("bob", "carol"));
+        assertFalse(graph.connected("alice", "bob"));
+    }
+
+    @Test
+    public void unknownUsersHaveNoConnections(){
+        ConnectionGraph graph = new ConnectionGraph();
+        graph.accept("alice", "bob");
+        assertEquals(-1, graph.id("nobody"));
+        assertEquals(-1, graph.distance("alice", "nobody", 6));
+        assertEquals(0, graph.distance("alice", "alice", 6));
+        assertTrue(graph.connectionNames("nobody", null).isEmpty());
+        assertFalse(graph.connected("alice", "nobody"));
+    }
+
+    private static void accept(ConnectionGraph graph, Map<String, Set<String>> reference, String a, String b){
+        graph.accept(a, b);
+        if (a.equals(b))
+            return;
+        link(reference, a, b);
+        link(reference, b, a);
+    }
+
+    private static void link(Map<String, Set<String>> reference, String a, String b){
+        Set<String> set = reference.get(a);
+        if (set == null){
+            set = new TreeSet<String>();
+            reference.put(a, set);
+        }
+        set.add(b);
+    }
+
+    private static void assertSame(Map<String, Set<String>> reference, ConnectionGraph graph){
+        for (Map.Entry<String, Set<String>> entry : reference.entrySet()){
+            String user = entry.getKey();
+            List<String> expected = new ArrayList<String>(entry.getValue());
+            assertEquals(user, expected, graph.connectionNames(user, null));
+
+            int id = graph.id(user);
+            assertEquals(user, expected.size(), graph.degree(id));
+            int[] ids = new int[expected.size()];
+            for (int i = 0; i < ids.length; i++){
+                ids[i] = graph.id(expected.get(i));
+            }
+            Arrays.sort(ids);
+            assertArrayEquals(user, ids, graph.neighbors(id));
+
+            for (String other : reference.keySet()){
+                assertEquals(user + " - " + other, entry.getValue().contains(other), graph.connected(user, other));
+            }
+        }
+    }
+
+    // plain BFS from one end; -1 when further than maxDepth or unreachable
+    private static int bfs(Map<String, Set<String>> reference, String from, String to, int maxDepth){
+        if (!reference.containsKey(from) || !reference.containsKey(to))
+            return -1;
+        Map<String, Integer> depth = new HashMap<String, Integer>();
+        ArrayDeque<String> queue = new ArrayDeque<String>();
+        depth.put(from, 0);
+        queue.add(from);
+        while (!queue.isEmpty()){
+            String u = queue.poll();
+            int d = depth.get(u);
+            if (u.equals(to))
+                return d;
+            if (d == maxDepth)
+                continue;
+            for (String v : reference.get(u)){
+                if (!depth.containsKey(v)){
+                    depth.put(v, d + 1);
+                    queue.add(v);
+                }
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,62 @@
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * IntIntMap against a HashMap of counters doing the same increments and
+ * removes.
+ */
+public class IntIntMapTest {
+
+    @Test
+    public void randomOperationsMatchHashMap(){
+        Random random = new Random(7);
+        IntIntMap map = new IntIntMap();
+        Map<Integer, Integer> reference = new HashMap<Integer, Integer>();
+        for (int op = 0; op < 200000; op++){
+            int key = random.nextInt(2000);
+            if (random.nextInt(4) == 0){
+                map.remove(key);
+                reference.remove(key);
+            }else{
+                map.increment(key);
+                Integer count = reference.get(key);
+                reference.put(key, count == null ? 1 : count + 1);
+            }
+            if (op % 5000 == 0)
+                assertSame(reference, map);
+        }
+        assertSame(reference, map);
+    }
+
+    @Test
+    public void slotsListEveryEntryOnce(){
+        IntIntMap map = new IntIntMap();
+        for (int i = 0; i < 1000; i++){
+            for (int n = 0; n <= i % 3; n++){
+                map.increment(i * 31);
+            }
+        }
+        Map<Integer, Integer> seen = new HashMap<Integer, Integer>();
+        for (int slot = 0; slot < map.capacity(); slot++){
+            if (map.keyAt(slot) >= 0)
+                assertEquals(null, seen.put(map.keyAt(slot), map.valueAt(slot)));
+        }
+        assertEquals(1000, seen.size());
+        for (int i = 0; i < 1000; i++){
+            assertEquals(i % 3 + 1, seen.get(i * 31).intValue());
+        }
+    }
+
+    private static void assertSame(Map<Integer, Integer> reference, IntIntMap map){
+        assertEquals(reference.size(), map.size());
+        for (int key = 0; key < 2000; key++){
+            Integer expected = reference.get(key);
+            assertEquals(expected == null ? 0 : expected.intValue(), map.get(key));
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * LongByteMap against a HashMap doing the same puts and removes.  Keys are
+ * drawn from a small range so probe runs collide and deletions have to
+ * shift entries back.
+ */
+public class LongByteMapTest {
+
+    @Test
+    public void randomOperationsMatchHashMap(){
+        Random random = new Random(42);
+        LongByteMap map = new LongByteMap();
+        Map<Long, Byte> reference = new HashMap<Long, Byte>();
+        for (int op = 0; op < 200000; op++){
+            long key = key(random.nextInt(300), random.nextInt(300));
+            if (random.nextInt(3) == 0){
+                map.remove(key);
+                reference.remove(key);
+            }else{
+                byte value = (byte) (1 + random.nextInt(2));
+                map.put(key, value);
+                reference.put(key, value);
+            }
+            if (op % 5000 == 0)
+                assertSame(reference, map);
+        }
+        assertSame(reference, map);
+    }
+
+    @Test
+    public void removingHalfKeepsTheRestReachable(){
+        LongByteMap map = new LongByteMap();
+        for (int i = 0; i < 10000; i++){
+            map.put(key(i, i * 7), (byte) 1);
+        }
+        for (int i = 0; i < 10000; i += 2){
+            map.remove(key(i, i * 7));
+        }
+        assertEquals(5000, map.size());
+        for (int i = 0; i < 10000; i++){
+            assertEquals(i % 2 == 0 ? 0 : 1, map.get(key(i, i * 7)));
+        }
+    }
+
+    @Test
+    public void missingKeysReadAsZero(){
+        LongByteMap map = new LongByteMap();
+        assertEquals(0, map.get(key(1, 2)));
+        map.remove(key(1, 2));
+        assertEquals(0, map.size());
+        map.put(key(1, 2), ConnectionGraph.REJECT);
+        map.put(key(1, 2), ConnectionGraph.REQUEST);
+        assertEquals(1, map.size());
+        assertEquals(ConnectionGraph.REQUEST, map.get(key(1, 2)));
+    }
+
+    private static void assertSame(Map<Long, Byte> reference, LongByteMap map){
+        assertEquals(reference.size(), map.size());
+        for (int from = 0; from < 300; from++){
+            for (int to = 0; to < 300; to++){
+                Byte expected = reference.get(key(from, to));
+                assertEquals(expected == null ? 0 : expected.byteValue(), map.get(key(from, to)));
+            }
+        }
+    }
+
+    // as ConnectionGraph keys its side table
+    private static long key(int from, int to){
+        return ((long) from << 32) | (to & 0xffffffffL);
+    }
+}
@@ -0,0 +1,103 @@
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * The SQL MutualConnections.between falls back to without the graph,
+ * run on an in-memory CONNECTION_USR, against common() over a graph of
+ * the same rows.  Pending and rejected rows are mixed in, and both
+ * directions of an accepted pair appear, as in the real table.
+ */
+public class MutualConnectionsTest {
+    private static final int USERS = 60;
+
+    private Connection db;
+    private ConnectionGraph graph;
+
+    @Before
+    public void load() throws SQLException {
+        db = DriverManager.getConnection("jdbc:h2:mem:mutual;MODE=PostgreSQL");
+        Statement create = db.createStatement();
+        create.execute("CREATE TABLE CONNECTION_USR(userId char(30) NOT NULL, connectionId char(30) NOT NULL, "
+                + "status char(30) NOT NULL, PRIMARY KEY(userId, connectionId))");
+        create.close();
+        graph = new ConnectionGraph();
+        Random random = new Random(41);
+        PreparedStatement insert = db.prepareStatement("INSERT INTO CONNECTION_USR VALUES (?, ?, ?)");
+        for (int from = 0; from < USERS; from++){
+            for (int to = 0; to < USERS; to++){
+                if (from == to || random.nextInt(6) != 0)
+                    continue;
+                String a = "u" + from;
+                String b = "u" + to;
+                String status;
+                switch (random.nextInt(4)){
+                    case 0: status = "Request"; graph.request(a, b); break;
+                    case 1: status = "Reject"; graph.reject(a, b); break;
+                    default: status = "Accept"; graph.accept(a, b); break;
+                }
+                insert.setString(1, a);
+                insert.setString(2, b);
+                insert.setString(3, status);
+                insert.executeUpdate();
+            }
+        }
+        insert.close();
+    }
+
+    @After
+    public void close() throws SQLException {
+        db.createStatement().execute("DROP ALL OBJECTS");
+        db.close();
+    }
+
+    @Test
+    public void sqlFallbackMatchesCommon() throws SQLException {
+        MutualConnections mutuals = new MutualConnections(null);
+        for (int a = 0; a < USERS; a++){
+            for (int b = 0; b < USERS; b++){
+                String x = "u" + a;
+                String y = "u" + b;
+                List<String> expected = new ArrayList<String>();
+                int u = graph.id(x);
+                int v = graph.id(y);
+                if (u >= 0 && v >= 0){
+                    for (int id : mutuals.common(graph, u, v)){
+                        expected.add(graph.name(id));
+                    }
+                }
+                Collections.sort(expected);
+                assertEquals(x + " and " + y, expected, between(x, y));
+            }
+        }
+    }
+
+    private List<String> between(String a, String b) throws SQLException {
+        PreparedStatement query = db.prepareStatement(MutualConnections.BETWEEN);
+        query.setString(1, a);
+        query.setString(2, a);
+        query.setString(3, b);
+        query.setString(4, b);
+        ResultSet rs = query.executeQuery();
+        List<String> result = new ArrayList<String>();
+        while (rs.next()){
+            result.add(rs.getString(1).trim());
+        }
+        query.close();
+        Collections.sort(result);
+        return result;
+    }
+}
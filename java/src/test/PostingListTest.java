@@ -0,0 +1,69 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/*
+ * PostingList against a TreeSet of the same ids.  Ids are appended in
+ * ascending order, as ProfileIndex.load adds them, with gaps of every
+ * varint length.
+ */
+public class PostingListTest {
+
+    @Test
+    public void ascendingIdsRoundTrip(){
+        Random random = new Random(31);
+        for (int round = 0; round < 20; round++){
+            // ids below 2^6, 2^13, 2^20, 2^27 or 2^30, so gaps of 1 to 5 bytes
+            int range = 1 << Math.min(30, 7 * (1 + round % 5) - 1);
+            TreeSet<Integer> reference = new TreeSet<Integer>();
+            for (int i = 0; i < 3000; i++){
+                reference.add(random.nextInt(range));
+            }
+            PostingList list = new PostingList();
+            int[] expected = new int[reference.size()];
+            int i = 0;
+            for (int id : reference){
+                list.add(id);
+                expected[i++] = id;
+            }
+            assertEquals(expected.length, list.size());
+            assertArrayEquals(expected, list.decode());
+        }
+    }
+
+    @Test
+    public void repeatedIdIsAddedOnce(){
+        PostingList list = new PostingList();
+        int[] ids = new int[10000];
+        for (int i = 0; i < ids.length; i++){
+            // a long jump every thousand ids
+            ids[i] = i * 3 + (i / 1000 << 20);
+        }
+        for (int id : ids){
+            list.add(id);
+            list.add(id);
+        }
+        assertEquals(ids.length, list.size());
+        assertArrayEquals(ids, list.decode());
+    }
+
+    @Test
+    public void emptyList(){
+        PostingList list = new PostingList();
+        assertEquals(0, list.size());
+        assertArrayEquals(new int[0], list.decode());
+        list.add(0);
+        assertArrayEquals(new int[]{ 0 }, list.decode());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void descendingIdIsRejected(){
+        PostingList list = new PostingList();
+        list.add(5);
+        list.add(3);
+    }
+}
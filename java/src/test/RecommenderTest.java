@@ -0,0 +1,87 @@
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/*
+ * Recommender's cached mutual counts are patched in place as connections
+ * are accepted.  These tests patch counts for a set of users through
+ * every accept and compare them with counts taken from scratch by
+ * intersecting adjacency sets.
+ */
+public class RecommenderTest {
+
+    @Test
+    public void countsMatchCommonNeighbours(){
+        Random random = new Random(11);
+        ConnectionGraph graph = new ConnectionGraph();
+        for (int i = 0; i < 3000; i++){
+            graph.accept("u" + random.nextInt(400), "u" + random.nextInt(400));
+        }
+        for (int id = 0; id < graph.userCount(); id++){
+            assertSame(graph, id, Recommender.mutualCounts(graph, id));
+        }
+    }
+
+    @Test
+    public void patchedCountsMatchCountsFromScratch(){
+        Random random = new Random(12);
+        final ConnectionGraph graph = new ConnectionGraph();
+        for (int i = 0; i < 600; i++){
+            graph.accept("u" + random.nextInt(300), "u" + random.nextInt(300));
+        }
+        // users whose counts are "cached", as Recommender.accepted sees them
+        final Map<Integer, IntIntMap> cached = new HashMap<Integer, IntIntMap>();
+        for (int i = 0; i < 40; i++){
+            int id = graph.id("u" + random.nextInt(300));
+            if (id >= 0)
+                cached.put(id, Recommender.mutualCounts(graph, id));
+        }
+        graph.addListener(new ConnectionGraph.Listener(){
+            public void accepted(int u, int v){
+                for (Map.Entry<Integer, IntIntMap> entry : cached.entrySet()){
+                    Recommender.patch(graph, entry.getValue(), entry.getKey(), u, v);
+                }
+            }
+        });
+        // enough accepts to go through a compaction, many of them
+        // touching a cached user or one of its neighbours
+        Integer[] ids = cached.keySet().toArray(new Integer[0]);
+        for (int i = 0; i < 1500; i++){
+            String a = random.nextBoolean() ? graph.name(ids[random.nextInt(ids.length)]) : "u" + random.nextInt(300);
+            graph.accept(a, "u" + random.nextInt(300));
+        }
+        for (Map.Entry<Integer, IntIntMap> entry : cached.entrySet()){
+            assertSame(graph, entry.getKey(), entry.getValue());
+        }
+    }
+
+    // counts from scratch: |N(id) & N(w)| for every w that is neither id
+    // nor one of its connections
+    private static void assertSame(ConnectionGraph graph, int id, IntIntMap counts){
+        Set<Integer> mine = neighbours(graph, id);
+        for (int w = 0; w < graph.userCount(); w++){
+            int expected = 0;
+            if (w != id && !mine.contains(w)){
+                for (int x : graph.neighbors(w)){
+                    if (mine.contains(x))
+                        expected++;
+                }
+            }
+            assertEquals(graph.name(id) + " and " + graph.name(w), expected, counts.get(w));
+        }
+    }
+
+    private static Set<Integer> neighbours(ConnectionGraph graph, int id){
+        Set<Integer> set = new HashSet<Integer>();
+        for (int v : graph.neighbors(id)){
+            set.add(v);
+        }
+        return set;
+    }
+}
@@ -0,0 +1,109 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/*
+ * RoaringBitmap and the sorted-array intersections MutualConnections uses,
+ * against TreeSet.  The sets mix sparse chunks (char[] containers) with
+ * chunks of more than 4096 values (long[] containers), so and() meets
+ * every pair of container kinds.
+ */
+public class RoaringBitmapTest {
+
+    @Test
+    public void containsAndCardinalityMatchTreeSet(){
+        Random random = new Random(21);
+        for (int round = 0; round < 20; round++){
+            TreeSet<Integer> set = randomSet(random);
+            RoaringBitmap bitmap = RoaringBitmap.of(toArray(set));
+            assertEquals(set.size(), bitmap.cardinality());
+            for (int probe = 0; probe < 20000; probe++){
+                int value = random.nextInt(6 << 16);
+                assertEquals(String.valueOf(value), set.contains(value), bitmap.contains(value));
+            }
+            for (int value : set){
+                assertEquals(String.valueOf(value), true, bitmap.contains(value));
+            }
+        }
+    }
+
+    @Test
+    public void andMatchesRetainAll(){
+        Random random = new Random(22);
+        for (int round = 0; round < 40; round++){
+            TreeSet<Integer> a = randomSet(random);
+            TreeSet<Integer> b = randomSet(random);
+            TreeSet<Integer> both = new TreeSet<Integer>(a);
+            both.retainAll(b);
+            RoaringBitmap x = RoaringBitmap.of(toArray(a));
+            RoaringBitmap y = RoaringBitmap.of(toArray(b));
+            assertArrayEquals(toArray(both), x.and(y));
+            assertArrayEquals(toArray(both), y.and(x));
+        }
+    }
+
+    @Test
+    public void emptyBitmaps(){
+        RoaringBitmap empty = RoaringBitmap.of(new int[0]);
+        RoaringBitmap some = RoaringBitmap.of(new int[]{ 1, 70000, 140000 });
+        assertEquals(0, empty.cardinality());
+        assertEquals(false, empty.contains(1));
+        assertArrayEquals(new int[0], empty.and(some));
+        assertArrayEquals(new int[0], some.and(empty));
+    }
+
+    @Test
+    public void mergeAndGallopMatchRetainAll(){
+        Random random = new Random(23);
+        for (int round = 0; round < 200; round++){
+            TreeSet<Integer> small = new TreeSet<Integer>();
+            TreeSet<Integer> large = new TreeSet<Integer>();
+            int range = 1 + random.nextInt(100000);
+            int smallSize = random.nextInt(50);
+            int largeSize = random.nextInt(5000);
+            for (int i = 0; i < smallSize; i++){
+                small.add(random.nextInt(range));
+            }
+            for (int i = 0; i < largeSize; i++){
+                large.add(random.nextInt(range));
+            }
+            TreeSet<Integer> both = new TreeSet<Integer>(small);
+            both.retainAll(large);
+            int[] expected = toArray(both);
+            assertArrayEquals(expected, MutualConnections.merge(toArray(small), toArray(large)));
+            assertArrayEquals(expected, MutualConnections.merge(toArray(large), toArray(small)));
+            assertArrayEquals(expected, MutualConnections.gallop(toArray(small), toArray(large)));
+        }
+    }
+
+    // values below 6 << 16; each chunk is empty, sparse or dense
+    private static TreeSet<Integer> randomSet(Random random){
+        TreeSet<Integer> set = new TreeSet<Integer>();
+        for (int high = 0; high < 6; high++){
+            int count;
+            switch (random.nextInt(4)){
+                case 0: count = 0; break;
+                case 1: count = random.nextInt(100); break;
+                case 2: count = 3000 + random.nextInt(2000); break;
+                default: count = 10000 + random.nextInt(40000); break;
+            }
+            for (int i = 0; i < count; i++){
+                set.add(high << 16 | random.nextInt(1 << 16));
+            }
+        }
+        return set;
+    }
+
+    private static int[] toArray(TreeSet<Integer> set){
+        int[] out = new int[set.size()];
+        int i = 0;
+        for (int value : set){
+            out[i++] = value;
+        }
+        return out;
+    }
+}
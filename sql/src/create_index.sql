@@ -4,7 +4,28 @@
 */
 CREATE INDEX usr_name ON USR(UserId);
 CREATE INDEX message_name ON MESSAGE(msgId);
-CREATE INDEX work_name ON WORK_EXP(userId,company,role,startDate));
+CREATE INDEX work_name ON WORK_EXPR(userId,company,role,startDate);
 CREATE INDEX connection_name ON CONNECTION_USR(userId,connectionId);
 CREATE INDEX edu_name ON EDUCATIONAL_DETAILS(userId,major,degree);
 
+/* mailbox pages: equality on the owner (and status), then newest first */
+CREATE INDEX message_inbox ON MESSAGE(receiverId,status,sendTime,msgId);
+CREATE INDEX message_sent ON MESSAGE(senderId,sendTime,msgId);
+/* the full inbox filters status IN ('Delivered','Read'), which the status
+   column above cannot serve in sendTime order */
+CREATE INDEX message_received ON MESSAGE(receiverId,sendTime,msgId);
+
+/* people you may know: coworkers and classmates */
+CREATE INDEX work_company ON WORK_EXPR(company,userId);
+CREATE INDEX edu_institution ON EDUCATIONAL_DETAILS(instituitionName,userId);
+
+/* user search: case-insensitive prefix on name/userId/email, trigram
+   similarity on name for typos */
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+CREATE INDEX usr_name_prefix ON USR(lower(name) text_pattern_ops);
+CREATE INDEX usr_id_prefix ON USR(lower(userId) text_pattern_ops);
+CREATE INDEX usr_email_prefix ON USR(lower(email) text_pattern_ops);
+CREATE INDEX usr_name_trgm ON USR USING gin (lower(name) gin_trgm_ops);
+
+/* conversation threads: both directions of a pair share one range */
+CREATE INDEX message_pair ON MESSAGE(LEAST(senderId,receiverId),GREATEST(senderId,receiverId),sendTime,msgId);
@@ -5,9 +5,15 @@ Shubham Sharma-  862253820
  862253820
 DROP TABLE IF EXISTS WORK_EXPR;
 DROP TABLE IF EXISTS EDUCATIONAL_DETAILS;
+DROP TABLE IF EXISTS UNREAD_COUNT;
 DROP TABLE IF EXISTS MESSAGE;
 DROP TABLE IF EXISTS CONNECTION_USR;
 DROP TABLE IF EXISTS USR;
+DROP SEQUENCE IF EXISTS msgId_seq;
+
+-- message ids; CACHE lets each session hand out a block of ids
+-- without touching the sequence on every insert
+CREATE SEQUENCE msgId_seq CACHE 50;
 
 CREATE TABLE USR(
 	userId varchar(30) UNIQUE NOT NULL, 
@@ -38,15 +44,23 @@ CREATE TABLE EDUCATIONAL_DETAILS(
 	PRIMARY KEY(userId,major,degree));
 
 CREATE TABLE MESSAGE(
-	msgId integer UNIQUE NOT NULL, 
+	msgId integer UNIQUE NOT NULL DEFAULT nextval('msgId_seq'), 
 	senderId char(30) NOT NULL,
 	receiverId char(30) NOT NULL,
 	contents char(500) NOT NULL,
-	sendTime timestamp,
+	sendTime timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
 	deleteStatus integer,
 	status char(30) NOT NULL,
 	PRIMARY KEY(msgId));
 
+-- unread messages per receiver, kept current by unread_trigger (trigger.sql)
+CREATE TABLE UNREAD_COUNT(
+	userId char(30) NOT NULL,
+	unread integer NOT NULL DEFAULT 0,
+	PRIMARY KEY(userId));
+
+ALTER SEQUENCE msgId_seq OWNED BY MESSAGE.msgId;
+
 CREATE TABLE CONNECTION_USR(
 	userId char(30) NOT NULL, 
 	connectionId char(30) NOT NULL, 
@@ -9,7 +9,7 @@ COPY USR (
 	name,
 	dateOfBirth
 )
-FROM 'USR.csv'
+FROM 'usr.csv'
 DELIMITER ',' CSV HEADER;
 
 
@@ -49,6 +49,9 @@ COPY MESSAGE (
 FROM 'Message.csv'
 DELIMITER ',' CSV HEADER;
 
+-- continue numbering after the loaded messages
+SELECT setval('msgId_seq', COALESCE((SELECT MAX(msgId) FROM MESSAGE), 0) + 1, false);
+
 
 COPY CONNECTION_USR (
 	userId,
@@ -3,16 +3,57 @@
 #Shubham Sharma- 862253820
 */
 CREATE LANGUAGE plpgsql;
-CREATE OR REPLACE FUNCTION func()
+-- msgId comes from the column default (nextval('msgId_seq'), see
+-- create_tables.sql); drop the old BEFORE INSERT trigger that did the same
+DROP TRIGGER IF EXISTS msgId_trigger ON MESSAGE;
+DROP FUNCTION IF EXISTS func();
+
+-- unread = delivered and not deleted by the receiver (deleteStatus 2)
+CREATE OR REPLACE FUNCTION unread_func()
 RETURNS "trigger" AS
 $BODY$
+DECLARE
+was_unread boolean := false;
+is_unread boolean := false;
 BEGIN
-NEW.msgId := nextval('msgId_seq');
-RETURN NEW;
+IF TG_OP <> 'INSERT' THEN
+was_unread := OLD.status = 'Delivered' AND OLD.deleteStatus IN (0, 1);
+END IF;
+IF TG_OP <> 'DELETE' THEN
+is_unread := NEW.status = 'Delivered' AND NEW.deleteStatus IN (0, 1);
+END IF;
+-- both true: an update that kept the message unread; only a change of
+-- receiver moves it between counters
+IF was_unread AND is_unread THEN
+IF OLD.receiverId = NEW.receiverId THEN
+RETURN NULL;
+END IF;
+END IF;
+IF was_unread THEN
+UPDATE UNREAD_COUNT SET unread = unread - 1 WHERE userId = OLD.receiverId;
+END IF;
+IF is_unread THEN
+INSERT INTO UNREAD_COUNT (userId, unread) VALUES (NEW.receiverId, 1)
+ON CONFLICT (userId) DO UPDATE SET unread = UNREAD_COUNT.unread + 1;
+END IF;
+RETURN NULL;
 END;
 $BODY$
 LANGUAGE plpgsql VOLATILE;
 
-CREATE TRIGGER msgId_trigger BEFORE INSERT
+DROP TRIGGER IF EXISTS unread_trigger ON MESSAGE;
+CREATE TRIGGER unread_trigger AFTER INSERT OR UPDATE OF status, deleteStatus, receiverId OR DELETE
 ON MESSAGE FOR EACH ROW
-EXECUTE PROCEDURE func();
\ No newline at end of file
+EXECUTE PROCEDURE unread_func();
+
+-- backfill from whatever was loaded before the trigger existed
+BEGIN;
+LOCK TABLE MESSAGE IN SHARE MODE;
+INSERT INTO UNREAD_COUNT (userId, unread)
+SELECT receiverId, COUNT(*) FROM MESSAGE
+WHERE status = 'Delivered' AND deleteStatus IN (0, 1)
+GROUP BY receiverId
+ON CONFLICT (userId) DO UPDATE SET unread = EXCLUDED.unread;
+UPDATE UNREAD_COUNT u SET unread = 0
+WHERE NOT EXISTS (SELECT 1 FROM MESSAGE m WHERE m.receiverId = u.userId AND m.status = 'Delivered' AND m.deleteStatus IN (0, 1));
+COMMIT;